@@ -0,0 +1,51 @@
+package ir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures inserting pre-tokenized documents into a fresh in-memory index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xmx2g"})
+public class IndexBenchmark {
+
+    @Param({"../patterns.txt"})
+    String patternsFile;
+
+    @Param({"2000"})
+    int documents;
+
+    @Param({"300"})
+    int meanWords;
+
+    String[][] tokens;
+
+    @Setup
+    public void setup() throws IOException {
+        var corpus = new SyntheticCorpus();
+        var texts = corpus.documents(documents, meanWords);
+        tokens = new String[documents][];
+        for (int i = 0; i < documents; i++) {
+            tokens[i] = SyntheticCorpus.tokenize(texts.get(i), patternsFile);
+        }
+    }
+
+    @Benchmark
+    public HashedIndex insert() {
+        var index = new HashedIndex();
+        for (int docID = 0; docID < tokens.length; docID++) {
+            var document = tokens[docID];
+            for (int offset = 0; offset < document.length; offset++) {
+                index.insert(document[offset], docID, offset);
+            }
+        }
+        return index;
+    }
+}
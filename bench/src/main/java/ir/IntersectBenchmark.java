@@ -0,0 +1,56 @@
+package ir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures intersecting two postings lists, for lists of similar length
+ * and for a short list against a much longer one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class IntersectBenchmark {
+
+    /** Length of the shorter list. */
+    @Param({"1000", "10000"})
+    int size;
+
+    /** How many times longer the longer list is. */
+    @Param({"1", "16", "256"})
+    int ratio;
+
+    PostingsList small;
+    PostingsList large;
+
+    @Setup
+    public void setup() {
+        var random = new Random(SyntheticCorpus.DEFAULT_SEED);
+        // Both lists draw docIDs from the same range, so they overlap
+        var range = size * ratio * 2;
+        small = randomList(random, size, range);
+        large = randomList(random, size * ratio, range);
+    }
+
+    /** A list of about <code>size</code> sorted docIDs below <code>range</code>. */
+    private static PostingsList randomList(Random random, int size, int range) {
+        var list = new PostingsList(size, 1);
+        var docID = -1;
+        var meanGap = (double) range / size;
+        for (int i = 0; i < size; i++) {
+            docID += 1 + (int) (random.nextDouble() * 2 * (meanGap - 1));
+            list.add(docID);
+        }
+        return list;
+    }
+
+    @Benchmark
+    public PostingsList intersect() {
+        return small.intersect(large);
+    }
+}
@@ -0,0 +1,71 @@
+package ir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the tokenizer on the text of the tokenizer test, with and without
+ * the filters that skip patterns for non-standard words.
+ * <p>
+ * The setup first checks that the tokens are exactly the ones of the
+ * expected output of TokenTest, so the filters cannot make the tokenizer
+ * faster by making it wrong.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class PatternBenchmark {
+
+    @Param({"../patterns.txt"})
+    String patternsFile;
+
+    @Param({"../token_test.txt"})
+    String textFile;
+
+    @Param({"../token_test_tokenized_ok.txt"})
+    String expectedFile;
+
+    @Param({"true", "false"})
+    boolean filters;
+
+    String text;
+    Tokenizer tokenizer;
+
+    @Setup
+    public void setup() throws IOException {
+        text = Files.readString(Path.of(textFile), StandardCharsets.UTF_8);
+        tokenizer = new Tokenizer(null, true, false, true, patternsFile);
+        tokenizer.use_pattern_filters = filters;
+        var expected = Files.readAllLines(Path.of(expectedFile), StandardCharsets.UTF_8);
+        var tokens = tokens();
+        if (!tokens.equals(expected)) {
+            throw new IllegalStateException("The tokens differ from " + expectedFile);
+        }
+    }
+
+    private List<String> tokens() throws IOException {
+        var tokens = new ArrayList<String>();
+        tokenizer.reset(new StringReader(text));
+        tokenizer.tokenize((chars, start, length) -> tokens.add(new String(chars, start, length)));
+        return tokens;
+    }
+
+    @Benchmark
+    public int tokenize() throws IOException {
+        var count = new int[1];
+        tokenizer.reset(new StringReader(text));
+        tokenizer.tokenize((chars, start, length) -> count[0]++);
+        return count[0];
+    }
+}
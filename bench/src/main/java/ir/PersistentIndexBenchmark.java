@@ -0,0 +1,97 @@
+package ir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading postings lists from a persistent index, through the
+ * files or the mappings. Cold reads start from an empty postings cache,
+ * so every list is read from the index files and decoded; warm reads find
+ * every encoded list in the cache and only decode it. The index is written
+ * to ./index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xmx2g"})
+public class PersistentIndexBenchmark {
+
+    @Param({"../patterns.txt"})
+    String patternsFile;
+
+    @Param({"10000"})
+    int documents;
+
+    @Param({"300"})
+    int meanWords;
+
+    @Param({"false", "true"})
+    boolean memoryMapped;
+
+    /** The words looked up by one operation, from very common to rare. */
+    static final int[] RANKS = {0, 1, 5, 20, 100, 500, 2000, 10000};
+
+    PersistentHashedIndex index;
+    String[] terms;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Files.createDirectories(Path.of(PersistentHashedIndex.INDEXDIR));
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        Index.docNorms.clear();
+        var corpus = new SyntheticCorpus();
+        var texts = corpus.documents(documents, meanWords);
+        index = new PersistentHashedIndex();
+        for (int docID = 0; docID < documents; docID++) {
+            var tokens = SyntheticCorpus.tokenize(texts.get(docID), patternsFile);
+            for (int offset = 0; offset < tokens.length; offset++) {
+                index.insert(tokens[offset], docID, offset);
+            }
+            Index.docNames.put(docID, "doc" + docID);
+            Index.docLengths.put(docID, tokens.length);
+        }
+        index.cleanup();
+        if (memoryMapped) {
+            index.mapFiles();
+        }
+        terms = new String[RANKS.length];
+        for (int i = 0; i < RANKS.length; i++) {
+            terms[i] = corpus.word(RANKS[i]);
+        }
+    }
+
+    /** Empties the postings cache before every cold read. */
+    @State(Scope.Thread)
+    public static class EmptyCache {
+        @Setup(Level.Invocation)
+        public void setup(PersistentIndexBenchmark benchmark) {
+            benchmark.index.setCacheBytes(PersistentHashedIndex.DEFAULT_CACHE_BYTES);
+        }
+    }
+
+    private int readAll() {
+        var postings = 0;
+        for (var term : terms) {
+            var list = index.getPostings(term);
+            postings += list == null ? 0 : list.size();
+        }
+        return postings;
+    }
+
+    @Benchmark
+    public int getPostingsCold(EmptyCache emptyCache) {
+        return readAll();
+    }
+
+    @Benchmark
+    public int getPostingsWarm() {
+        return readAll();
+    }
+}
@@ -0,0 +1,84 @@
+package ir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures queries against an in-memory index of a synthetic corpus. The
+ * query words are picked by their frequency rank, so "common" queries hit
+ * long postings lists and "mixed" queries combine a rare and a common word.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xmx2g"})
+public class SearchBenchmark {
+
+    @Param({"../patterns.txt"})
+    String patternsFile;
+
+    @Param({"10000"})
+    int documents;
+
+    @Param({"300"})
+    int meanWords;
+
+    Searcher searcher;
+    String common;
+    String mixed;
+
+    @Setup
+    public void setup() throws IOException {
+        var corpus = new SyntheticCorpus();
+        var texts = corpus.documents(documents, meanWords);
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        Index.docNorms.clear();
+        var index = new HashedIndex();
+        for (int docID = 0; docID < documents; docID++) {
+            var tokens = SyntheticCorpus.tokenize(texts.get(docID), patternsFile);
+            for (int offset = 0; offset < tokens.length; offset++) {
+                index.insert(tokens[offset], docID, offset);
+            }
+            Index.docNames.put(docID, "doc" + docID);
+            Index.docLengths.put(docID, tokens.length);
+        }
+        index.cleanup();
+        searcher = new Searcher(index, null);
+        common = corpus.word(0) + " " + corpus.word(1);
+        mixed = corpus.word(2) + " " + corpus.word(500);
+    }
+
+    private PostingsList search(String query, QueryType queryType) {
+        return searcher.search(new Query(query), queryType, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS);
+    }
+
+    @Benchmark
+    public PostingsList intersectionCommon() {
+        return search(common, QueryType.INTERSECTION_QUERY);
+    }
+
+    @Benchmark
+    public PostingsList intersectionMixed() {
+        return search(mixed, QueryType.INTERSECTION_QUERY);
+    }
+
+    @Benchmark
+    public PostingsList phraseCommon() {
+        return search(common, QueryType.PHRASE_QUERY);
+    }
+
+    @Benchmark
+    public PostingsList phraseMixed() {
+        return search(mixed, QueryType.PHRASE_QUERY);
+    }
+
+    @Benchmark
+    public PostingsList rankedCommon() {
+        return search(common, QueryType.RANKED_QUERY);
+    }
+}
@@ -0,0 +1,73 @@
+package ir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures merging the segments of a scalable index into the dictionary
+ * and data files. Before every merge, the corpus is inserted again and
+ * written as the given number of segments. The index is written to ./index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xmx2g"})
+public class SegmentMergeBenchmark {
+
+    @Param({"../patterns.txt"})
+    String patternsFile;
+
+    @Param({"10000"})
+    int documents;
+
+    @Param({"300"})
+    int meanWords;
+
+    @Param({"4", "16"})
+    int segments;
+
+    String[][] tokens;
+    PersistentScalableHashedIndex index;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Files.createDirectories(Path.of(PersistentHashedIndex.INDEXDIR));
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        Index.docNorms.clear();
+        var texts = new SyntheticCorpus().documents(documents, meanWords);
+        tokens = new String[documents][];
+        for (int docID = 0; docID < documents; docID++) {
+            tokens[docID] = SyntheticCorpus.tokenize(texts.get(docID), patternsFile);
+            Index.docNames.put(docID, "doc" + docID);
+            Index.docLengths.put(docID, tokens[docID].length);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void writeSegments() {
+        index = new PersistentScalableHashedIndex();
+        var perSegment = (documents + segments - 1) / segments;
+        for (int docID = 0; docID < documents; docID++) {
+            var document = tokens[docID];
+            for (int offset = 0; offset < document.length; offset++) {
+                index.insert(document[offset], docID, offset);
+            }
+            if ((docID + 1) % perSegment == 0) {
+                index.writeSegment();
+            }
+        }
+        index.writeSegment();
+    }
+
+    @Benchmark
+    public void merge() throws IOException {
+        index.mergeSegments();
+    }
+}
@@ -0,0 +1,172 @@
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a reproducible corpus of synthetic documents, so benchmarks do
+ * not depend on the davisWiki dataset.
+ * <p>
+ * The words are drawn from a fixed vocabulary of generated words with Zipf
+ * distributed frequencies, so a few words occur in almost every document and
+ * most words in very few, like in natural text. Sentences start with a
+ * capital letter and end with punctuation, and now and then contain an
+ * e-mail address or a number, so the tokenizer has some work to do. The
+ * same seed always gives the same vocabulary and the same documents.
+ */
+public class SyntheticCorpus {
+
+    public static final long DEFAULT_SEED = 2477;
+    public static final int DEFAULT_VOCABULARY_SIZE = 50000;
+    public static final double DEFAULT_EXPONENT = 1.0;
+
+    private final String[] vocabulary;
+
+    /** cumulative[i] is the probability of drawing one of the first i + 1 words. */
+    private final double[] cumulative;
+
+    private final Random random;
+
+    public SyntheticCorpus() {
+        this(DEFAULT_SEED, DEFAULT_VOCABULARY_SIZE, DEFAULT_EXPONENT);
+    }
+
+    /**
+     * @param seed           The seed of all random choices.
+     * @param vocabularySize The number of different words.
+     * @param exponent       The Zipf exponent; the word of rank r has a
+     *                       frequency proportional to 1 / r^exponent.
+     */
+    public SyntheticCorpus(long seed, int vocabularySize, double exponent) {
+        random = new Random(seed);
+        vocabulary = new String[vocabularySize];
+        var seen = new HashSet<String>();
+        var sb = new StringBuilder();
+        for (int i = 0; i < vocabularySize; ) {
+            sb.setLength(0);
+            // Frequent words tend to be short
+            var length = 2 + random.nextInt(Math.min(3 + i / 200, 10));
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            if (seen.add(sb.toString())) {
+                vocabulary[i++] = sb.toString();
+            }
+        }
+        cumulative = new double[vocabularySize];
+        var sum = 0.0;
+        for (int i = 0; i < vocabularySize; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < vocabularySize; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    /** The word of the given frequency rank, 0 being the most frequent. */
+    public String word(int rank) {
+        return vocabulary[rank];
+    }
+
+    /** The number of different words. */
+    public int vocabularySize() {
+        return vocabulary.length;
+    }
+
+    /** Draws a word from the Zipf distribution. */
+    public String nextWord() {
+        var i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return vocabulary[Math.min(i >= 0 ? i : -i - 1, vocabulary.length - 1)];
+    }
+
+    /**
+     * Generates the next document, with about the given number of words.
+     */
+    public String nextDocument(int words) {
+        var sb = new StringBuilder(words * 7);
+        var sentenceStart = true;
+        for (int i = 0; i < words; i++) {
+            var r = random.nextInt(200);
+            String word;
+            if (r == 0) {
+                word = nextWord() + "." + nextWord() + "@kth.se";
+            } else if (r == 1) {
+                word = Integer.toString(random.nextInt(100000));
+            } else {
+                word = nextWord();
+            }
+            if (sentenceStart) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+                sentenceStart = false;
+            }
+            sb.append(word);
+            if (random.nextInt(12) == 0 || i == words - 1) {
+                sb.append(random.nextInt(5) == 0 ? "?" : ".");
+                sentenceStart = true;
+            } else if (random.nextInt(15) == 0) {
+                sb.append(',');
+            }
+            sb.append(i % 15 == 14 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates documents whose lengths vary uniformly between half and one
+     * and a half times the mean length.
+     */
+    public List<String> documents(int count, int meanWords) {
+        var documents = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            documents.add(nextDocument(meanWords / 2 + random.nextInt(meanWords + 1)));
+        }
+        return documents;
+    }
+
+    /**
+     * Writes documents to numbered files in a directory, so they can be
+     * indexed by the engine.
+     */
+    public void write(File dir, int count, int meanWords) throws IOException {
+        Files.createDirectories(dir.toPath());
+        var documents = documents(count, meanWords);
+        for (int i = 0; i < count; i++) {
+            Files.writeString(new File(dir, String.format("doc%06d.txt", i)).toPath(), documents.get(i), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Tokenizes a document like the indexer does.
+     */
+    public static String[] tokenize(String document, String patternsFile) throws IOException {
+        var tokens = new ArrayList<String>();
+        var tok = new Tokenizer(new StringReader(document), true, false, true, patternsFile);
+        while (tok.hasMoreTokens()) {
+            tokens.add(tok.nextToken());
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * Writes a corpus to disk.
+     * Usage: SyntheticCorpus directory count [meanWords] [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticCorpus directory count [meanWords] [seed]");
+            System.exit(1);
+        }
+        var meanWords = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        var seed = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+        new SyntheticCorpus(seed, DEFAULT_VOCABULARY_SIZE, DEFAULT_EXPONENT).write(new File(args[0]), Integer.parseInt(args[1]), meanWords);
+    }
+}
@@ -0,0 +1,66 @@
+package ir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the tokenizer splits documents into tokens: through the
+ * String API with one tokenizer per document, and through the sink API with
+ * one reused tokenizer and a token table, like the indexer does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class TokenizerBenchmark {
+
+    @Param({"../patterns.txt"})
+    String patternsFile;
+
+    @Param({"300"})
+    int meanWords;
+
+    /** Number of documents tokenized per operation. */
+    static final int DOCUMENTS = 100;
+
+    List<String> documents;
+
+    @Setup
+    public void setup() {
+        documents = new SyntheticCorpus().documents(DOCUMENTS, meanWords);
+    }
+
+    @Benchmark
+    public int tokenize() throws IOException {
+        var tokens = 0;
+        for (var document : documents) {
+            var tok = new Tokenizer(new StringReader(document), true, false, true, patternsFile);
+            while (tok.hasMoreTokens()) {
+                tok.nextToken();
+                tokens++;
+            }
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public int tokenizeIntoSink() throws IOException {
+        var tok = new Tokenizer(null, true, false, true, patternsFile);
+        var table = new TokenTable();
+        var tokens = new int[1];
+        for (var document : documents) {
+            tok.reset(new StringReader(document));
+            tok.tokenize((chars, start, length) -> {
+                table.intern(chars, start, length);
+                tokens[0]++;
+            });
+        }
+        return tokens[0];
+    }
+}
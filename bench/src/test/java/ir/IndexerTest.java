@@ -0,0 +1,91 @@
+package ir;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IndexerTest {
+
+    private static final String[] WORDS = {"zombie", "attack", "the", "movie", "night", "city", "ghost", "of"};
+
+    @TempDir
+    Path corpus;
+
+    @BeforeEach
+    void writeCorpus() throws IOException {
+        var random = new Random(17);
+        for (int d = 0; d < 60; d++) {
+            var text = new StringBuilder();
+            for (int i = 5 + random.nextInt(40); i > 0; i--) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            Files.writeString(corpus.resolve("doc" + d + ".txt"), text);
+        }
+        Files.createDirectories(Path.of(PersistentHashedIndex.INDEXDIR));
+    }
+
+    @AfterEach
+    void deleteIndex() throws IOException {
+        try (var files = Files.walk(Path.of(PersistentHashedIndex.INDEXDIR))) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /** The postings of every word, by document name, as docName:positions. */
+    private static Map<String, List<String>> postingsByName(Index index) {
+        var result = new TreeMap<String, List<String>>();
+        for (var word : WORDS) {
+            var list = index.getPostings(word);
+            var postings = new ArrayList<String>();
+            for (int i = 0; list != null && i < list.size(); i++) {
+                var entry = list.get(i);
+                postings.add(Path.of(Index.docNames.get(entry.docID)).getFileName() + ":" + entry.offsets);
+            }
+            postings.sort(null);
+            result.put(word, postings);
+        }
+        return result;
+    }
+
+    private static void clearDocuments() {
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        Index.docNorms.clear();
+    }
+
+    @Test
+    void parallelIndexingFlushesThroughTheBudget() {
+        clearDocuments();
+        var expected = new HashedIndex();
+        new Indexer(expected, null, "../patterns.txt").processFiles(corpus.toFile(), true);
+        expected.cleanup();
+        var expectedPostings = postingsByName(expected);
+
+        for (var flushBytes : new long[]{1, 4000, Long.MAX_VALUE}) {
+            clearDocuments();
+            var index = new PersistentScalableHashedIndex();
+            index.setFlushBytes(flushBytes);
+            var indexer = new Indexer(index, null, "../patterns.txt");
+            indexer.threads = 4;
+            indexer.processFilesParallel(corpus.toFile());
+            index.cleanup();
+            assertEquals(expectedPostings, postingsByName(index), "flush budget " + flushBytes);
+            assertEquals(60, Index.docNames.size());
+        }
+    }
+}
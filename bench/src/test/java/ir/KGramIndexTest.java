@@ -0,0 +1,190 @@
+package ir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KGramIndexTest {
+
+    @TempDir
+    Path dir;
+
+    /** Random words of 1 to 8 characters, with repetitions. */
+    private static List<String> randomWords(Random random, int n) {
+        var alphabet = "abcdeéö中".toCharArray();
+        var words = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            var word = new StringBuilder();
+            for (int j = 1 + random.nextInt(8); j > 0; j--) {
+                word.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    private static List<Integer> toList(IntBuffer buffer) {
+        var list = new ArrayList<Integer>();
+        for (int i = 0; i < buffer.remaining(); i++) {
+            list.add(buffer.get(buffer.position() + i));
+        }
+        return list;
+    }
+
+    /** The IDs of the terms containing every k-gram of the padded terms, by k-gram. */
+    private static Map<String, List<Integer>> postings(List<String> terms, int k) {
+        var postings = new TreeMap<String, TreeSet<Integer>>();
+        for (int id = 0; id < terms.size(); id++) {
+            var padded = KGramIndex.START + terms.get(id) + KGramIndex.END;
+            for (int i = 0; i + k <= padded.length(); i++) {
+                postings.computeIfAbsent(padded.substring(i, i + k), g -> new TreeSet<>()).add(id);
+            }
+        }
+        var result = new TreeMap<String, List<Integer>>();
+        postings.forEach((kgram, ids) -> result.put(kgram, List.copyOf(ids)));
+        return result;
+    }
+
+    /** Checks the terms, term IDs and postings of the index against the terms, in ID order. */
+    private static void assertHolds(KGramIndex index, List<String> terms) {
+        assertEquals(terms.size(), index.size());
+        for (int id = 0; id < terms.size(); id++) {
+            assertEquals(terms.get(id), index.getTermByID(id));
+        }
+        var postings = postings(terms, index.getK());
+        postings.forEach((kgram, ids) -> assertEquals(ids, toList(index.getPostings(kgram)), kgram));
+        for (var kgram : List.of("zzzz", "yxwv", "z^^^", "y$$$")) {
+            assertNull(index.getPostings(kgram.substring(0, index.getK())), kgram);
+        }
+        assertNull(index.getPostings("abcde".substring(0, index.getK() + 1)));
+        for (int id = 0; id < terms.size(); id++) {
+            assertEquals(id, index.getIDByTerm(terms.get(id)));
+        }
+        for (var term : List.of("z", "abcdeabcd", "", "a*")) {
+            assertEquals(-1, index.getIDByTerm(term), term);
+        }
+    }
+
+    private static KGramIndex insertAll(KGramIndex index, List<String> words) {
+        for (var word : words) {
+            index.insert(word);
+        }
+        return index;
+    }
+
+    @Test
+    void postingsHoldEveryTermContainingTheKGram() {
+        var random = new Random(21);
+        for (int k = 1; k <= KGramIndex.MAX_K; k++) {
+            var words = randomWords(random, 3000);
+            var index = insertAll(new KGramIndex(k), words.subList(0, 2000));
+            var terms = new ArrayList<>(new LinkedHashSet<>(words.subList(0, 2000)));
+            assertHolds(index, terms);
+            // Terms inserted after the postings were built are indexed as well
+            insertAll(index, words);
+            terms = new ArrayList<>(new LinkedHashSet<>(words));
+            assertHolds(index, terms);
+        }
+    }
+
+    @Test
+    void intersectMergesAndGallops() {
+        var random = new Random(22);
+        for (var sizes : List.of(List.of(0, 10), List.of(5, 5), List.of(100, 120), List.of(3, 1000), List.of(1000, 2))) {
+            var lists = new ArrayList<IntBuffer>();
+            var sets = new ArrayList<TreeSet<Integer>>();
+            for (var size : sizes) {
+                var set = new TreeSet<Integer>();
+                while (set.size() < size) {
+                    set.add(random.nextInt(3 * Math.max(size, 10)));
+                }
+                // A slice, like the postings of the index
+                var array = new int[size + 2];
+                var i = 1;
+                for (var id : set) {
+                    array[i++] = id;
+                }
+                lists.add(IntBuffer.wrap(array, 1, size).slice());
+                sets.add(set);
+            }
+            var expected = new TreeSet<>(sets.get(0));
+            expected.retainAll(sets.get(1));
+            assertEquals(List.copyOf(expected), toList(KGramIndex.intersect(lists.get(0), lists.get(1))), sizes.toString());
+            assertEquals(List.copyOf(expected), toList(KGramIndex.intersect(lists.get(1), lists.get(0))), sizes.toString());
+        }
+    }
+
+    @Test
+    void wildcardTermsMatchThePattern() {
+        var words = randomWords(new Random(23), 2000);
+        var terms = new ArrayList<>(new LinkedHashSet<>(words));
+        for (int k = 1; k <= KGramIndex.MAX_K; k++) {
+            var index = insertAll(new KGramIndex(k), words);
+            for (var pattern : List.of("*", "a*", "*b", "a*b", "ab*c*", "*中*", "é", "abcd*", "*z*", "**a")) {
+                var regex = Pattern.compile(("\\Q" + pattern + "\\E").replace("*", "\\E.*\\Q"));
+                var expected = terms.stream().filter(t -> regex.matcher(t).matches()).toList();
+                assertEquals(expected, index.wildcardTerms(pattern, Integer.MAX_VALUE), k + " " + pattern);
+                assertEquals(expected.subList(0, Math.min(3, expected.size())), index.wildcardTerms(pattern, 3));
+            }
+        }
+    }
+
+    @Test
+    void writtenIndexIsReadBack() throws IOException {
+        var random = new Random(24);
+        var file = dir.resolve(PersistentHashedIndex.KGRAMS_FNAME);
+        for (int k = 1; k <= KGramIndex.MAX_K; k++) {
+            var words = randomWords(random, 3000);
+            insertAll(new KGramIndex(k), words.subList(0, 2000)).write(file);
+            var index = KGramIndex.read(file);
+            assertEquals(k, index.getK());
+            // Wildcards and postings are read from the file before the terms are decoded
+            var terms = new ArrayList<>(new LinkedHashSet<>(words.subList(0, 2000)));
+            var expected = terms.stream().filter(t -> t.startsWith("a")).toList();
+            assertEquals(expected, index.wildcardTerms("a*", Integer.MAX_VALUE));
+            assertHolds(index, terms);
+
+            // A read index takes new terms, and replaces the file it was read from
+            insertAll(index, words);
+            terms = new ArrayList<>(new LinkedHashSet<>(words));
+            assertHolds(index, terms);
+            index.write(file);
+            assertHolds(index, terms);
+            assertHolds(KGramIndex.read(file), terms);
+        }
+    }
+
+    @Test
+    void emptyIndexIsReadBack() throws IOException {
+        var file = dir.resolve(PersistentHashedIndex.KGRAMS_FNAME);
+        new KGramIndex(2).write(file);
+        var index = KGramIndex.read(file);
+        assertHolds(index, List.of());
+        assertEquals(List.of(), index.wildcardTerms("a*", 10));
+        index.insert("ab");
+        assertEquals(List.of(0), toList(index.getPostings("^a")));
+    }
+
+    @Test
+    void otherFilesAreNotRead() throws IOException {
+        var file = Files.write(dir.resolve("other"), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        assertThrows(IOException.class, () -> KGramIndex.read(file));
+        assertThrows(IOException.class, () -> KGramIndex.read(Files.write(dir.resolve("short"), new byte[3])));
+    }
+}
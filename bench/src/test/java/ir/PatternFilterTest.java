@@ -0,0 +1,141 @@
+package ir;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PatternFilterTest {
+
+    /** Patterns, each with tokens it finds a match in. */
+    private static final String[][] EXAMPLES = {
+            // Alternations
+            {"a|b@", "a", "xb@"},
+            {"(a|)b", "b"},
+            {"x(a|b)+y", "xay", "xbaby"},
+            {"中文|x", "中文", "x"},
+            // Nested groups with quantifiers
+            {"((ab)+c)?d", "d", "ababcd"},
+            {"(a(b|c)){2}d", "abacd"},
+            {"(x(y(z)*)?)+w", "xw", "xyzzw"},
+            {"a*b?c", "c", "aac"},
+            // Bounded repetitions
+            {"e{0,3}@", "@", "eee@"},
+            {"q{0,2}r{1,}", "r"},
+            {"\\d{2,}-\\d", "12-3"},
+            {"(ab){0}c", "c"},
+            // Escapes in classes and ranges
+            {"[\\-\\.]x", "-x", ".x"},
+            {"[\\!-\\/]z", "#z", "/z"},
+            {"[a\\-z]", "-", "a", "z"},
+            {"[]a]", "]"},
+            {"[\\s,]x", " x", ",x", "\tx"},
+            {"\\.\\.+", ".."},
+            {"\\w+@\\w+\\.se", "foo@kth.se"},
+            // Negated classes
+            {"[^a]b", "bb", "éb"},
+            {"[^@]+@", "x@"},
+            {"\\W\\D\\S", "-x!"},
+            // Non-ASCII characters
+            {"é@", "é@"},
+            {"[é-ü]x", "öx"},
+            {"[aé]", "é"},
+            {"[\\u00e9]", "é"},
+            // Constructs the scan does not handle
+            {"(?i)abc", "ABC"},
+            {"a\\Qb.\\E", "ab."},
+            {"(?:a)b", "ab"},
+            {"\\bfoo\\b", "foo"},
+            {"(a)\\1", "aa"},
+    };
+
+    private static boolean mayMatch(PatternFilter filter, String token) {
+        var chars = token.toCharArray();
+        return filter.mayMatch(PatternFilter.lowMask(chars, 0, chars.length), PatternFilter.highMask(chars, 0, chars.length));
+    }
+
+    /** Checks that the filter accepts every token the pattern finds a match in. */
+    private static void assertNeverRejectsAMatch(Pattern pattern, List<String> tokens) {
+        var filter = PatternFilter.of(pattern);
+        for (var token : tokens) {
+            if (pattern.matcher(token).find()) {
+                assertTrue(mayMatch(filter, token), pattern + " matches " + token);
+            }
+        }
+    }
+
+    /** Random tokens over the characters of the patterns, and some others. */
+    private static List<String> randomTokens() {
+        var alphabet = "abcdexyzqrwABC0123@.-_,!#/]: \té中öü".toCharArray();
+        var random = new Random(2477);
+        var tokens = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            var token = new StringBuilder();
+            for (int j = 1 + random.nextInt(8); j > 0; j--) {
+                token.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    @Test
+    void examplesAreAccepted() {
+        for (var example : EXAMPLES) {
+            var pattern = Pattern.compile(example[0]);
+            var filter = PatternFilter.of(pattern);
+            for (int i = 1; i < example.length; i++) {
+                assertTrue(pattern.matcher(example[i]).find(), pattern + " finds " + example[i]);
+                assertTrue(mayMatch(filter, example[i]), pattern + " may match " + example[i]);
+            }
+        }
+    }
+
+    @Test
+    void randomTokensThatMatchAreAccepted() {
+        var tokens = randomTokens();
+        for (var example : EXAMPLES) {
+            assertNeverRejectsAMatch(Pattern.compile(example[0]), tokens);
+        }
+        assertNeverRejectsAMatch(Pattern.compile("abc", Pattern.CASE_INSENSITIVE), List.of("ABC", "xAbC"));
+    }
+
+    @Test
+    void patternsFileNeverRejectsAMatch() throws IOException {
+        var tokens = new ArrayList<String>(randomTokens());
+        for (var line : Files.readAllLines(Path.of("../token_test.txt"))) {
+            tokens.addAll(List.of(line.split("\\s+")));
+        }
+        for (var line : Files.readAllLines(Path.of("../patterns.txt"))) {
+            if (!line.isBlank() && !line.startsWith("//")) {
+                assertNeverRejectsAMatch(Pattern.compile(line.trim()), tokens);
+            }
+        }
+    }
+
+    @Test
+    void requiredCharactersRejectPlainWords() {
+        var filter = PatternFilter.of(Pattern.compile("[a-z\\d_\\.]+@.*[a-z\\d]+"));
+        assertEquals(3, filter.requirements());
+        assertFalse(mayMatch(filter, "zombie"));
+        assertTrue(mayMatch(filter, "a@b"));
+
+        assertEquals(2, PatternFilter.of(Pattern.compile("x(a|b)+y")).requirements());
+        assertFalse(mayMatch(PatternFilter.of(Pattern.compile("[\\!-\\/]z")), "az"));
+        assertFalse(mayMatch(PatternFilter.of(Pattern.compile("e{0,3}@")), "eee"));
+        // No requirement is taken from an alternation, an optional element or a negated class
+        assertEquals(0, PatternFilter.of(Pattern.compile("a|b@")).requirements());
+        assertEquals(1, PatternFilter.of(Pattern.compile("((ab)+c)?d")).requirements());
+        assertEquals(1, PatternFilter.of(Pattern.compile("[^a]b")).requirements());
+        assertEquals(0, PatternFilter.of(Pattern.compile("(?i)abc")).requirements());
+    }
+}
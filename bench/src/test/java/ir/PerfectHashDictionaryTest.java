@@ -0,0 +1,98 @@
+package ir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PerfectHashDictionaryTest {
+
+    @TempDir
+    Path dir;
+
+    private static PersistentHashedIndex.Entry entry(String token, int i) {
+        return new PersistentHashedIndex.Entry(token, 100L * i, i + 1, i / 4f, i / 8f);
+    }
+
+    private static String toString(PersistentHashedIndex.Entry e) {
+        return e.token + " " + e.dataPtr + " " + e.dataSize + " " + e.lengthBound + " " + e.normBound;
+    }
+
+    private Path write(String name, List<PersistentHashedIndex.Entry> entries) throws IOException {
+        return Files.write(dir.resolve(name), PerfectHashDictionary.encode(entries));
+    }
+
+    @Test
+    void entriesAreFoundAndAbsentTermsAreNot() throws IOException {
+        var entries = new ArrayList<PersistentHashedIndex.Entry>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(entry("w" + i, i));
+        }
+        entries.add(entry("zombiö", 1000));
+        entries.add(entry("中文", 1001));
+        var file = write("dictionary", entries);
+        try (var channel = FileChannel.open(file)) {
+            var dictionary = PerfectHashDictionary.read(channel);
+            assertEquals(entries.size(), dictionary.size());
+            for (var mapped : new MappedFile[]{null, new MappedFile(file.toString())}) {
+                for (var e : entries) {
+                    assertEquals(toString(e), toString(dictionary.find(e.token, channel, mapped)));
+                }
+                for (var token : List.of("w1000", "w", "w01", "zombio", "中", "")) {
+                    assertNull(dictionary.find(token, channel, mapped), token);
+                }
+            }
+            var expected = new TreeMap<String, String>();
+            for (var e : entries) {
+                expected.put(e.token, toString(e));
+            }
+            var read = new TreeMap<String, String>();
+            for (var e : dictionary.entries(channel)) {
+                read.put(e.token, toString(e));
+            }
+            assertEquals(expected, read);
+        }
+    }
+
+    @Test
+    void emptyDictionary() throws IOException {
+        try (var channel = FileChannel.open(write("dictionary", List.of()))) {
+            var dictionary = PerfectHashDictionary.read(channel);
+            assertEquals(0, dictionary.size());
+            assertNull(dictionary.find("zombie", channel, null));
+            assertEquals(List.of(), dictionary.entries(channel));
+        }
+    }
+
+    @Test
+    void termWithTheSameFingerprintIsNotFound() throws IOException {
+        // With one term, every term hashes to the only slot
+        var ghost = write("ghost", List.of(entry("ghost", 1)));
+        var ghoul = write("ghoul", List.of(entry("ghoul", 2)));
+        try (var channel = FileChannel.open(ghost)) {
+            assertNotNull(PerfectHashDictionary.read(channel).find("ghost", channel, null));
+        }
+        // Give the slot of ghoul the fingerprint of ghost
+        var fingerprintPtr = PerfectHashDictionary.HEADER_SIZE + Integer.BYTES;
+        var fingerprint = ByteBuffer.wrap(Files.readAllBytes(ghost)).getInt(fingerprintPtr);
+        var bytes = Files.readAllBytes(ghoul);
+        ByteBuffer.wrap(bytes).putInt(fingerprintPtr, fingerprint);
+        Files.write(ghoul, bytes);
+        try (var channel = FileChannel.open(ghoul)) {
+            var dictionary = PerfectHashDictionary.read(channel);
+            assertNull(dictionary.find("ghost", channel, null));
+            assertNull(dictionary.find("ghost", channel, new MappedFile(ghoul.toString())));
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package ir;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentHashedIndexTest {
+
+    private static final String[][] DOCUMENTS = {
+            {"the", "zombie", "attack"},
+            {"a", "zombie", "movie"},
+            {"the", "movie"},
+    };
+
+    private PersistentHashedIndex index;
+
+    @BeforeEach
+    void writeIndex() throws IOException {
+        deleteIndex();
+        Files.createDirectories(Path.of(PersistentHashedIndex.INDEXDIR));
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        Index.docNorms.clear();
+        index = new PersistentHashedIndex();
+        for (int docID = 0; docID < DOCUMENTS.length; docID++) {
+            for (int offset = 0; offset < DOCUMENTS[docID].length; offset++) {
+                index.insert(DOCUMENTS[docID][offset], docID, offset);
+            }
+            Index.docNames.put(docID, "doc" + docID);
+            Index.docLengths.put(docID, DOCUMENTS[docID].length);
+        }
+        index.cleanup();
+    }
+
+    @AfterEach
+    void deleteIndex() throws IOException {
+        var dir = Path.of(PersistentHashedIndex.INDEXDIR);
+        if (Files.exists(dir)) {
+            try (var files = Files.walk(dir)) {
+                for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    void repeatedQueryIsReadFromTheCache() {
+        var searcher = new Searcher(index, null);
+        var query = new Query("zombie movie");
+        var first = searcher.search(query, QueryType.INTERSECTION_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS);
+
+        var s = index.acquireSnapshot();
+        try {
+            var hits = s.cache.hits();
+            var misses = s.cache.misses();
+            var second = searcher.search(query, QueryType.INTERSECTION_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS);
+            assertEquals(first.toString(), second.toString());
+            assertEquals(misses, s.cache.misses());
+            assertEquals(hits + 2, s.cache.hits());
+        } finally {
+            s.release();
+        }
+    }
+
+    @Test
+    void postingsReadThroughIteratorAreCached() {
+        var s = index.acquireSnapshot();
+        try {
+            var iterator = index.iterator("zombie");
+            assertInstanceOf(PostingsCodec.BinaryIterator.class, iterator);
+            assertEquals(2, iterator.docFrequency());
+            assertEquals(0, iterator.nextDoc());
+            assertEquals(1, iterator.nextDoc());
+            assertEquals(1, s.cache.misses());
+            assertTrue(index.iterator("zombie") != null);
+            assertEquals(1, s.cache.hits());
+        } finally {
+            s.release();
+        }
+    }
+
+    @Test
+    void docFrequencyIsReadFromTheHeader() {
+        for (var mapped : new boolean[]{false, true}) {
+            if (mapped) {
+                index.mapFiles();
+            }
+            var s = index.acquireSnapshot();
+            try {
+                assertEquals(2, index.docFrequency("zombie"));
+                assertEquals(1, index.docFrequency("attack"));
+                assertEquals(0, index.docFrequency("ghost"));
+                assertEquals(0, s.cache.misses());
+                assertEquals(0, s.cache.hits());
+            } finally {
+                s.release();
+            }
+        }
+    }
+
+    @Test
+    void everyDictionaryFormatIsReadBack() throws IOException {
+        for (var format : DictionaryFormat.values()) {
+            deleteIndex();
+            Files.createDirectories(Path.of(PersistentHashedIndex.INDEXDIR));
+            Index.docNames.clear();
+            Index.docLengths.clear();
+            Index.docNorms.clear();
+            var written = new PersistentHashedIndex();
+            written.dictionaryFormat = format;
+            var expected = new HashedIndex();
+            var tokens = new ArrayList<String>();
+            for (int docID = 0; docID < 100; docID++) {
+                var document = List.of("zombie", "w" + docID, "w" + (docID * 7 % 100), "zombie");
+                for (int offset = 0; offset < document.size(); offset++) {
+                    written.insert(document.get(offset), docID, offset);
+                    expected.insert(document.get(offset), docID, offset);
+                }
+                Index.docNames.put(docID, "doc" + docID);
+                Index.docLengths.put(docID, document.size() + docID % 3);
+                tokens.add("w" + docID);
+            }
+            tokens.add("zombie");
+            written.cleanup();
+            expected.cleanup();
+
+            // A new index opens the files that were written
+            var index = new PersistentHashedIndex();
+            for (var mapped : new boolean[]{false, true}) {
+                if (mapped) {
+                    index.mapFiles();
+                }
+                for (var token : tokens) {
+                    assertEquals(expected.getPostings(token).toString(), index.getPostings(token).toString(), format + " " + token);
+                    assertEquals(expected.docFrequency(token), index.docFrequency(token));
+                    for (var normType : List.of(NormalizationType.NUMBER_OF_WORDS, NormalizationType.EUCLIDEAN)) {
+                        assertEquals(expected.upperBound(token, normType), index.upperBound(token, normType), format + " " + token);
+                    }
+                }
+                for (var token : List.of("w100", "w", "w00", "zombi", "zombies", "ghost")) {
+                    assertNull(index.getPostings(token), format + " " + token);
+                    assertNull(index.iterator(token));
+                    assertEquals(0, index.docFrequency(token));
+                    assertEquals(Double.POSITIVE_INFINITY, index.upperBound(token, NormalizationType.NUMBER_OF_WORDS));
+                }
+            }
+        }
+    }
+
+    /** Adds a document with the given docID in an update of the index. */
+    private static Map<String, PostingsList> addDocument(int docID, String... tokens) {
+        var segment = new HashMap<String, PostingsList>();
+        for (int offset = 0; offset < tokens.length; offset++) {
+            segment.computeIfAbsent(tokens[offset], t -> new PostingsList()).add(docID, offset);
+        }
+        Index.docNames.put(docID, "doc" + docID);
+        Index.docLengths.put(docID, tokens.length);
+        return segment;
+    }
+
+    /** The documents matching an intersection query, as a list of docIDs. */
+    private List<Integer> search(String query) {
+        var result = new Searcher(index, null).search(new Query(query), QueryType.INTERSECTION_QUERY,
+                RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS);
+        var docIDs = new ArrayList<Integer>();
+        for (int i = 0; result != null && i < result.size(); i++) {
+            docIDs.add(result.get(i).docID);
+        }
+        return docIDs;
+    }
+
+    @Test
+    void updatesAreSearchedBeforeAndAfterTheMerge() throws IOException {
+        var removed = new BitSet();
+        removed.set(0);
+        index.update(addDocument(3, "zombie", "ghost"), removed, 4, System.currentTimeMillis());
+        for (var merged : new boolean[]{false, true}) {
+            if (merged) {
+                index.mergeUpdates();
+                var s = index.acquireSnapshot();
+                try {
+                    assertFalse(s.updated());
+                } finally {
+                    s.release();
+                }
+                assertFalse(Files.exists(Path.of(PersistentHashedIndex.INDEXDIR, PersistentHashedIndex.DELTA_FNAME + ".0")));
+            }
+            assertEquals(List.of(1, 3), search("zombie"));
+            assertEquals(List.of(3), search("zombie ghost"));
+            assertEquals(List.of(), search("attack"));
+            assertEquals(List.of(2), search("the"));
+            assertEquals(2, index.docFrequency("zombie"));
+            assertEquals(0, index.docFrequency("attack"));
+            assertNull(index.iterator("attack"));
+        }
+    }
+
+    @Test
+    void updatesDuringMergesAreKept() throws IOException {
+        // Every update starts a merge in the background, which runs while the next updates are made
+        for (int docID = 3; docID < 40; docID++) {
+            var removed = new BitSet();
+            if (docID % 3 == 0) {
+                removed.set(docID - 2);
+            }
+            index.update(addDocument(docID, "zombie", "doc" + docID), removed, docID + 1, System.currentTimeMillis());
+        }
+        index.mergeUpdates();
+        var expected = new ArrayList<Integer>();
+        for (int docID = 0; docID < 40; docID++) {
+            if (docID != 2 && !(docID % 3 == 1 && docID + 2 < 40)) {
+                expected.add(docID);
+            }
+        }
+        assertEquals(expected, search("zombie"));
+        assertEquals(List.of(), search("doc4"));
+        assertEquals(List.of(5), search("doc5"));
+    }
+}
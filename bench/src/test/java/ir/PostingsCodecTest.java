@@ -0,0 +1,199 @@
+package ir;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PostingsCodecTest {
+
+    /** A list of n postings with random docID gaps and 1 to 3 positions each. */
+    private static PostingsList randomList(Random random, int firstDocID, int n) {
+        var list = new PostingsList();
+        var docID = firstDocID;
+        for (int i = 0; i < n; i++) {
+            docID += 1 + random.nextInt(5);
+            var offset = 0;
+            for (int j = 1 + random.nextInt(3); j > 0; j--) {
+                offset += 1 + random.nextInt(200);
+                list.add(docID, offset);
+            }
+        }
+        return list;
+    }
+
+    private static PostingsCodec.Header header(byte[] data) {
+        return new PostingsCodec.Header(ByteBuffer.wrap(data));
+    }
+
+    /** The index of the first posting whose docID is at least target, or the size of the list. */
+    private static int firstAtLeast(PostingsList list, int target) {
+        var i = 0;
+        while (i < list.size() && list.docID(i) < target) {
+            i++;
+        }
+        return i;
+    }
+
+    /** Checks that the iterator is on posting i of the list, and reads its positions. */
+    private static void assertOn(PostingsList list, int i, PostingsIterator it) {
+        if (i == list.size()) {
+            assertEquals(PostingsIterator.NO_MORE_DOCS, it.docID());
+            return;
+        }
+        assertEquals(list.docID(i), it.docID());
+        assertEquals(list.tf(i), it.tf());
+        for (int j = list.positionStart(i); j < list.positionEnd(i); j++) {
+            assertEquals(list.positions()[j], it.nextPosition());
+        }
+    }
+
+    /**
+     * The targets worth advancing to: around every skip point and the
+     * first posting of its block, the ends of the list and past it.
+     */
+    private static List<Integer> targets(PostingsList list, PostingsCodec.Header header) {
+        var targets = new TreeSet<Integer>();
+        targets.add(0);
+        targets.add(list.docID(0));
+        targets.add(list.docID(list.size() - 1));
+        targets.add(list.docID(list.size() - 1) + 1);
+        for (int s = 0; s < header.skipDocIDs.length; s++) {
+            for (var docID : List.of(header.skipDocIDs[s], list.docID(header.skipIndexes[s]))) {
+                targets.add(docID - 1);
+                targets.add(docID);
+                targets.add(docID + 1);
+            }
+        }
+        return new ArrayList<>(targets);
+    }
+
+    @Test
+    void roundTrip() {
+        var random = new Random(1);
+        for (var n : List.of(1, 31, 32, 33, 100, 1000)) {
+            var list = randomList(random, 0, n);
+            var data = PostingsCodec.encode(list, PostingsFormat.BINARY);
+            assertEquals(PostingsCodec.BINARY_V3, data[0]);
+            assertEquals(list.toString(), PostingsCodec.decode(data).toString());
+            var text = PostingsCodec.encode(list, PostingsFormat.TEXT);
+            assertEquals(list.toString(), PostingsCodec.decode(text).toString());
+        }
+    }
+
+    @Test
+    void longListsHaveSkipsEveryFewPostings() {
+        var list = randomList(new Random(2), 0, 1000);
+        var header = header(PostingsCodec.encode(list, PostingsFormat.BINARY));
+        assertEquals(list.size(), header.docCount);
+        assertEquals(list.docID(list.size() - 1), header.lastDocID);
+        assertTrue(header.skipIndexes.length > 10);
+        for (int s = 0; s < header.skipIndexes.length; s++) {
+            assertEquals(list.docID(header.skipIndexes[s] - 1), header.skipDocIDs[s]);
+        }
+        var shortList = randomList(new Random(2), 0, PostingsCodec.MIN_SKIP_LIST_SIZE - 1);
+        assertEquals(0, header(PostingsCodec.encode(shortList, PostingsFormat.BINARY)).skipIndexes.length);
+    }
+
+    @Test
+    void advanceFromTheStart() {
+        var random = new Random(3);
+        for (var n : List.of(1, 32, 100, 1000)) {
+            var list = randomList(random, 0, n);
+            var data = PostingsCodec.encode(list, PostingsFormat.BINARY);
+            for (var target : targets(list, header(data))) {
+                var it = PostingsCodec.iterator(ByteBuffer.wrap(data));
+                var i = firstAtLeast(list, target);
+                assertEquals(i == n ? PostingsIterator.NO_MORE_DOCS : list.docID(i), it.advance(target));
+                assertOn(list, i, it);
+                // The postings after it are still read in order
+                assertEquals(i + 1 >= n ? PostingsIterator.NO_MORE_DOCS : list.docID(i + 1), it.nextDoc());
+            }
+        }
+    }
+
+    @Test
+    void advanceThroughTheList() {
+        var random = new Random(4);
+        var list = randomList(random, 0, 1000);
+        var data = PostingsCodec.encode(list, PostingsFormat.BINARY);
+        var targets = targets(list, header(data));
+        for (int run = 0; run < 20; run++) {
+            var it = PostingsCodec.iterator(ByteBuffer.wrap(data));
+            var i = -1;
+            for (var target : targets) {
+                if (random.nextInt(3) > 0) {
+                    continue;
+                }
+                if (random.nextBoolean() && i + 1 < list.size() && list.docID(i + 1) < target) {
+                    // Leave the positions of a posting unread before advancing
+                    i++;
+                    assertEquals(list.docID(i), it.nextDoc());
+                }
+                var next = Math.max(i, firstAtLeast(list, target));
+                assertEquals(next == list.size() ? PostingsIterator.NO_MORE_DOCS : list.docID(next), it.advance(target));
+                if (next > i) {
+                    // The positions of a posting can only be read once
+                    assertOn(list, next, it);
+                    i = next;
+                }
+            }
+            assertEquals(PostingsIterator.NO_MORE_DOCS, it.advance(Integer.MAX_VALUE));
+            assertEquals(PostingsIterator.NO_MORE_DOCS, it.nextDoc());
+        }
+    }
+
+    @Test
+    void advanceDoesNotMoveBackwards() {
+        var list = randomList(new Random(5), 0, 100);
+        var it = PostingsCodec.iterator(ByteBuffer.wrap(PostingsCodec.encode(list, PostingsFormat.BINARY)));
+        assertEquals(list.docID(50), it.advance(list.docID(50)));
+        assertEquals(list.docID(50), it.advance(list.docID(10)));
+        assertEquals(list.docID(51), it.nextDoc());
+    }
+
+    @Test
+    void concatMatchesReEncoding() {
+        var random = new Random(6);
+        for (var sizes : List.of(List.of(1000), List.of(5, 5), List.of(40, 3, 100), List.of(1, 500, 31, 32, 2))) {
+            var whole = new PostingsList();
+            var parts = new ArrayList<ByteBuffer>();
+            var lastDocID = 0;
+            for (var size : sizes) {
+                var part = randomList(random, lastDocID, size);
+                lastDocID = part.docID(part.size() - 1);
+                for (int i = 0; i < part.size(); i++) {
+                    for (int j = part.positionStart(i); j < part.positionEnd(i); j++) {
+                        whole.add(part.docID(i), part.positions()[j]);
+                    }
+                }
+                // Every other part in the text format, which is re-encoded first
+                var format = parts.size() % 2 == 0 ? PostingsFormat.BINARY : PostingsFormat.TEXT;
+                parts.add(ByteBuffer.wrap(PostingsCodec.encode(part, format)));
+            }
+            parts.add(ByteBuffer.wrap(PostingsCodec.encode(new PostingsList(), PostingsFormat.BINARY)));
+
+            var data = PostingsCodec.concat(parts);
+            var reEncoded = PostingsCodec.encode(whole, PostingsFormat.BINARY);
+            assertEquals(PostingsCodec.decode(reEncoded).toString(), PostingsCodec.decode(data).toString());
+            var header = header(data);
+            assertEquals(whole.size(), header.docCount);
+            assertEquals(header(reEncoded).lastDocID, header.lastDocID);
+            for (int s = 0; s < header.skipIndexes.length; s++) {
+                assertEquals(whole.docID(header.skipIndexes[s] - 1), header.skipDocIDs[s]);
+            }
+            for (var target : targets(whole, header)) {
+                var it = PostingsCodec.iterator(ByteBuffer.wrap(data));
+                var i = firstAtLeast(whole, target);
+                it.advance(target);
+                assertOn(whole, i, it);
+            }
+        }
+    }
+}
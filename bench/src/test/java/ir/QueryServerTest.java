@@ -0,0 +1,98 @@
+package ir;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class QueryServerTest {
+
+    /** An index whose postings cannot be read. */
+    private static final class FailingIndex implements Index {
+        @Override
+        public void insert(String token, int docID, int offset) {
+        }
+
+        @Override
+        public PostingsList getPostings(String token) {
+            throw new UncheckedIOException(new IOException("cannot read " + token));
+        }
+
+        @Override
+        public void cleanup() {
+        }
+    }
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new QueryServer(new Searcher(new FailingIndex(), null)).start(0);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private HttpResponse<String> get(String query) throws IOException, InterruptedException {
+        var uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/search" + query);
+        try (var client = HttpClient.newHttpClient()) {
+            return client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+        }
+    }
+
+    @Test
+    void badRequest() throws Exception {
+        var response = get("?type=ranked");
+        assertEquals(400, response.statusCode());
+        assertEquals("{\"error\":\"missing parameter q\"}", response.body());
+    }
+
+    @Test
+    void kMustBePositive() throws Exception {
+        for (var k : new String[]{"0", "-3"}) {
+            var response = get("?q=zombie&type=ranked&k=" + k);
+            assertEquals(400, response.statusCode());
+            assertEquals("{\"error\":\"k must be positive\"}", response.body());
+        }
+    }
+
+    @Test
+    void failedSearchIsAnswered() throws Exception {
+        var response = get("?q=zombie");
+        assertEquals(500, response.statusCode());
+        assertEquals("{\"error\":\"internal error\"}", response.body());
+    }
+
+    @Test
+    void replayCountsFailedQueries(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("queries.txt");
+        Files.writeString(file, "zombie\nphrase\tzombie attack\n\nranked\tattack\n");
+        var server = new QueryServer(new Searcher(new FailingIndex(), null));
+        assertEquals(3, server.replay(file.toFile(), 2, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, 10));
+    }
+
+    @Test
+    void replayRejectsUnknownQueryTypes(@TempDir Path dir) throws IOException {
+        var file = dir.resolve("queries.txt");
+        Files.writeString(file, "ranked\tzombie\nfuzzy\tzombie\n");
+        var server = new QueryServer(new Searcher(new FailingIndex(), null));
+        var e = assertThrows(IOException.class,
+                () -> server.replay(file.toFile(), 1, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, 10));
+        assertEquals(file + ":2: unknown query type fuzzy", e.getMessage());
+    }
+}
@@ -0,0 +1,195 @@
+package ir;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SearcherTest {
+
+    private HashedIndex index;
+    private List<String[]> documents;
+
+    @BeforeEach
+    void clearDocuments() {
+        Index.docNames.clear();
+        Index.docLengths.clear();
+        Index.docNorms.clear();
+        index = new HashedIndex();
+        documents = new ArrayList<>();
+    }
+
+    private void add(String text) {
+        var tokens = text.split(" ");
+        var docID = documents.size();
+        for (int offset = 0; offset < tokens.length; offset++) {
+            index.insert(tokens[offset], docID, offset);
+        }
+        Index.docNames.put(docID, "doc" + docID);
+        Index.docLengths.put(docID, tokens.length);
+        documents.add(tokens);
+    }
+
+    /** The documents matching a phrase query, as a list of docIDs. */
+    private List<Integer> phrase(String query) {
+        return phrase(index, query);
+    }
+
+    private static List<Integer> phrase(Index index, String query) {
+        var result = new Searcher(index, null).search(new Query(query), QueryType.PHRASE_QUERY,
+                RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS);
+        var docIDs = new ArrayList<Integer>();
+        for (int i = 0; result != null && i < result.size(); i++) {
+            docIDs.add(result.get(i).docID);
+        }
+        return docIDs;
+    }
+
+    @Test
+    void slopBoundsTheWindowOfAllTerms() {
+        add("a x b x c");
+        index.cleanup();
+        // Every gap is one too long, so the window spans 2 positions
+        assertEquals(List.of(), phrase("\"a b c\"~1"));
+        assertEquals(List.of(0), phrase("\"a b c\"~2"));
+        assertEquals(List.of(), phrase("\"a b c\""));
+    }
+
+    @Test
+    void reversedTerms() {
+        add("b a");
+        add("a b");
+        index.cleanup();
+        assertEquals(List.of(1), phrase("\"a b\""));
+        assertEquals(List.of(1), phrase("\"a b\"~1"));
+        assertEquals(List.of(0, 1), phrase("\"a b\"~2"));
+    }
+
+    @Test
+    void repeatedTermsUseDistinctPositions() {
+        add("a");
+        add("a x a");
+        add("a a");
+        index.cleanup();
+        assertEquals(List.of(2), phrase("\"a a\""));
+        assertEquals(List.of(1, 2), phrase("\"a a\"~1"));
+        assertEquals(List.of(1, 2), phrase("\"a a\"~5"));
+        assertEquals(List.of(), phrase("\"a a a\"~5"));
+    }
+
+    @Test
+    void matchesEveryAssignmentOfPositions() {
+        var random = new Random(2477);
+        for (int d = 0; d < 300; d++) {
+            var text = new StringBuilder("z");
+            for (int i = random.nextInt(8); i > 0; i--) {
+                text.append(' ').append((char) ('a' + random.nextInt(3)));
+            }
+            add(text.toString());
+        }
+        index.cleanup();
+        for (int q = 0; q < 200; q++) {
+            var terms = new String[1 + random.nextInt(3)];
+            for (int j = 0; j < terms.length; j++) {
+                terms[j] = String.valueOf((char) ('a' + random.nextInt(3)));
+            }
+            var slop = random.nextInt(4);
+            var expected = new ArrayList<Integer>();
+            for (int docID = 0; docID < documents.size(); docID++) {
+                if (matches(documents.get(docID), terms, new int[terms.length], 0, slop)) {
+                    expected.add(docID);
+                }
+            }
+            var query = "\"" + String.join(" ", terms) + "\"~" + slop;
+            assertEquals(expected, phrase(query), query);
+        }
+    }
+
+    @Test
+    void phrasesOnAnIndexReadFromDisk() throws IOException {
+        var dir = Path.of(PersistentHashedIndex.INDEXDIR);
+        Files.createDirectories(dir);
+        try {
+            var written = new PersistentHashedIndex();
+            var random = new Random(11);
+            for (int d = 0; d < 500; d++) {
+                var tokens = new String[1 + random.nextInt(12)];
+                for (int i = 0; i < tokens.length; i++) {
+                    tokens[i] = String.valueOf((char) ('a' + random.nextInt(4)));
+                    written.insert(tokens[i], d, i);
+                }
+                add(String.join(" ", tokens));
+            }
+            index.cleanup();
+            written.cleanup();
+
+            var read = new PersistentHashedIndex();
+            for (int q = 0; q < 200; q++) {
+                var terms = new String[1 + random.nextInt(3)];
+                for (int j = 0; j < terms.length; j++) {
+                    terms[j] = String.valueOf((char) ('a' + random.nextInt(4)));
+                }
+                var query = "\"" + String.join(" ", terms) + "\"~" + random.nextInt(3);
+                assertEquals(phrase(query), phrase(read, query), query);
+            }
+            assertEquals(List.of(), phrase(read, "\"a e\""));
+            assertEquals(List.of(), phrase(read, "\"e\""));
+        } finally {
+            try (var files = Files.walk(dir)) {
+                for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Test
+    void rankedQueryForNoDocuments() {
+        add("a b");
+        add("a a");
+        index.cleanup();
+        var searcher = new Searcher(index, null);
+        var query = new Query("a b");
+        for (var k : List.of(0, -1)) {
+            var result = searcher.search(query, QueryType.RANKED_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, k);
+            assertEquals(0, result.size());
+        }
+        var result = searcher.search(query, QueryType.RANKED_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, 1);
+        assertEquals(1, result.size());
+        assertEquals(0, result.get(0).docID);
+    }
+
+    /** Tries every distinct position for every term from j on. */
+    private static boolean matches(String[] document, String[] terms, int[] chosen, int j, int slop) {
+        if (j == terms.length) {
+            var min = Integer.MAX_VALUE;
+            var max = Integer.MIN_VALUE;
+            for (int k = 0; k < terms.length; k++) {
+                min = Math.min(min, chosen[k] - k);
+                max = Math.max(max, chosen[k] - k);
+            }
+            return max - min <= slop;
+        }
+        for (int p = 0; p < document.length; p++) {
+            var used = false;
+            for (int k = 0; k < j; k++) {
+                used |= chosen[k] == p;
+            }
+            if (!used && document[p].equals(terms[j])) {
+                chosen[j] = p;
+                if (matches(document, terms, chosen, j + 1, slop)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
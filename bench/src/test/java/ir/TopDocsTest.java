@@ -0,0 +1,53 @@
+package ir;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TopDocsTest {
+
+    @Test
+    void thresholdWithoutCapacity() {
+        var top = new TopDocs(0);
+        assertEquals(Double.POSITIVE_INFINITY, top.threshold());
+        top.offer(1, 1.0);
+        assertEquals(0, top.size());
+        assertEquals(0, top.toPostingsList().size());
+    }
+
+    @Test
+    void thresholdIsTheLowestKeptScore() {
+        var top = new TopDocs(2);
+        assertEquals(Double.NEGATIVE_INFINITY, top.threshold());
+        top.offer(1, 3.0);
+        assertEquals(Double.NEGATIVE_INFINITY, top.threshold());
+        top.offer(2, 1.0);
+        assertEquals(1.0, top.threshold());
+        top.offer(3, 2.0);
+        assertEquals(2.0, top.threshold());
+    }
+
+    @Test
+    void keepsTheBestDocuments() {
+        var random = new Random(7);
+        var top = new TopDocs(10);
+        var all = new ArrayList<double[]>();
+        for (int docID = 0; docID < 1000; docID++) {
+            // Few distinct scores, so that ties are broken by docID
+            var score = random.nextInt(50);
+            top.offer(docID, score);
+            all.add(new double[]{docID, score});
+        }
+        all.sort(Comparator.<double[]>comparingDouble(d -> -d[1]).thenComparingDouble(d -> d[0]));
+        var result = top.toPostingsList();
+        assertEquals(10, result.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals((int) all.get(i)[0], result.docID(i));
+            assertEquals(all.get(i)[1], result.score(i));
+        }
+    }
+}
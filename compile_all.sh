@@ -3,4 +3,4 @@ if ! [ -d classes ];
 then
    mkdir classes
 fi
-javac -cp . -d classes ir/Engine.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/NormalizationType.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/Tokenizer.java ir/TokenTest.java 
+javac -cp . -d classes ir/DictionaryFormat.java ir/Engine.java ir/FrontCodedDictionary.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/KGramIndex.java ir/MappedFile.java ir/NormalizationType.java ir/PatternFilter.java ir/PerfectHashDictionary.java ir/PersistentHashedIndex.java ir/PostingsCache.java ir/PostingsCodec.java ir/PostingsEntry.java ir/PostingsFormat.java ir/PostingsIterator.java ir/PostingsList.java ir/PersistentScalableHashedIndex.java ir/Query.java ir/QueryServer.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/Segment.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/TfIdf.java ir/Tokenizer.java ir/TokenSink.java ir/TokenTable.java ir/TokenTest.java ir/TopDocs.java ir/UnionIterator.java 
@@ -0,0 +1,13 @@
+package ir;
+
+/**
+ *  The layouts a persistent index can use for its dictionary file.
+ *  <p>
+ *  HASHED is an open-addressing table of fixed-size slots, FRONT_CODED
+ *  holds the terms sorted and front-coded in blocks (see
+ *  {@link FrontCodedDictionary}) and PERFECT_HASHED is addressed by a
+ *  minimal perfect hash function (see {@link PerfectHashDictionary}).
+ */
+public enum DictionaryFormat {
+    HASHED, FRONT_CODED, PERFECT_HASHED
+}
@@ -9,6 +9,7 @@ package ir;
 
 import java.util.ArrayList;
 import java.io.File;
+import java.io.IOException;
 
 /**
  *  This is the main class for the search engine.
@@ -27,14 +28,10 @@ public class Engine {
     Searcher searcher;
 
     /** K-gram index */
-    KGramIndex kgIndex = null;
-    // Assignment 3: Comment the line above and uncomment the next line
-    // KgramIndex kgIndex = new KGramIndex(2);
+    KGramIndex kgIndex = new KGramIndex(2);
 
     /** Spell checker */
     SpellChecker speller;
-    // Assignment 3: Comment the line above and uncomment the next line
-    // SpellChecker = new SpellChecker( index, kgIndex );
     
     /** The engine GUI. */
     SearchGUI gui;
@@ -42,9 +39,6 @@ public class Engine {
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
-
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
 
@@ -57,6 +51,24 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Persistent indexes are brought up to date with the files instead of being rebuilt if this is set. */
+    boolean is_updating = false;
+
+    /** Number of threads used for indexing; 1 indexes on the calling thread. */
+    int indexing_threads = 1;
+
+    /** Persistent indexes are read through memory-mapped files if this is set. */
+    boolean memory_mapped = false;
+
+    /** The port of the HTTP query server, or 0 for no server. */
+    int server_port = 0;
+
+    /** A file of queries to replay, or null. */
+    String batch_file = null;
+
+    /** Number of concurrent clients replaying the batch file. */
+    int batch_clients = 1;
+
 
     /* ----------------------------------------------- */
 
@@ -67,30 +79,89 @@ public class Engine {
      */
     public Engine( String[] args ) {
         decodeArgs( args );
+        if ( index instanceof PersistentHashedIndex persistent && kgIndex != null ) {
+            if ( !is_indexing ) {
+                // The k-gram index is read from disk with the index, unless there is none yet
+                KGramIndex stored = persistent.readKGramIndex( kgIndex.getK() );
+                if ( stored != null ) {
+                    kgIndex = stored;
+                } else {
+                    System.err.println( "No " + kgIndex.getK() + "-gram index on disk" );
+                }
+            }
+            persistent.kgIndex = kgIndex;
+        }
         indexer = new Indexer( index, kgIndex, patterns_file );
+        indexer.threads = indexing_threads;
         searcher = new Searcher( index, kgIndex );
-        gui = new SearchGUI( this );
-        gui.init();
+        if ( kgIndex != null ) {
+            speller = new SpellChecker( index, kgIndex );
+        }
+        if ( !isHeadless() ) {
+            gui = new SearchGUI( this );
+            gui.init();
+        }
         /* 
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to 
-         *   search at the same time we're indexing new files (this might 
-         *   corrupt the index).
+         *   Searches only see the index once cleanup publishes it, so
+         *   they can run while new files are being indexed.
          */
         if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
-                long startTime = System.currentTimeMillis();
-                for ( int i=0; i<dirNames.size(); i++ ) {
-                    File dokDir = new File( dirNames.get( i ));
+            displayInfoText( "Indexing, please wait..." );
+            long startTime = System.currentTimeMillis();
+            for ( int i=0; i<dirNames.size(); i++ ) {
+                File dokDir = new File( dirNames.get( i ));
+                if ( indexing_threads > 1 ) {
+                    indexer.processFilesParallel( dokDir );
+                } else {
                     indexer.processFiles( dokDir, is_indexing );
                 }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
-                index.cleanup();
             }
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+            index.cleanup();
+        } else if ( is_updating && index instanceof PersistentHashedIndex persistent ) {
+            displayInfoText( "Updating the index, please wait..." );
+            long startTime = System.currentTimeMillis();
+            indexer.updateFiles( dirNames, persistent );
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            displayInfoText( String.format( "Index updated in %.1f seconds.", elapsedTime/1000.0 ));
+        } else {
+            displayInfoText( "Index is loaded from disk" );
+        }
+        if ( memory_mapped && index instanceof PersistentHashedIndex persistent ) {
+            persistent.mapFiles();
+        }
+        try {
+            QueryServer server = new QueryServer( searcher );
+            if ( batch_file != null ) {
+                server.replay( new File( batch_file ), batch_clients, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, Searcher.DEFAULT_TOP_K );
+            }
+            if ( server_port > 0 ) {
+                server.start( server_port );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     *   Without a GUI, the engine only answers queries over HTTP or from a batch file.
+     */
+    boolean isHeadless() {
+        return server_port > 0 || batch_file != null;
+    }
+
+
+    /**
+     *   Shows a message in the GUI, or on the console if there is none.
+     */
+    private void displayInfoText( String text ) {
+        if ( gui != null ) {
+            gui.displayInfoText( text );
         } else {
-            gui.displayInfoText( "Index is loaded from disk" );
+            System.err.println( text );
         }
     }
 
@@ -126,6 +197,65 @@ public class Engine {
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
+            } else if ( "-update".equals( args[i] )) {
+                i++;
+                is_indexing = false;
+                is_updating = true;
+            } else if ( "-t".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_threads = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-cache".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    if ( index instanceof PersistentHashedIndex persistent ) {
+                        persistent.setCacheBytes( Long.parseLong( args[i] ) << 20 );
+                    }
+                    i++;
+                }
+            } else if ( "-flush".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    if ( index instanceof PersistentScalableHashedIndex scalable ) {
+                        scalable.setFlushBytes( Long.parseLong( args[i] ) << 20 );
+                    }
+                    i++;
+                }
+            } else if ( "-server".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    server_port = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-batch".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    batch_file = args[i++];
+                }
+            } else if ( "-clients".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    batch_clients = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-mm".equals( args[i] )) {
+                i++;
+                memory_mapped = true;
+            } else if ( "-dict".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    if ( index instanceof PersistentHashedIndex persistent ) {
+                        persistent.dictionaryFormat = DictionaryFormat.valueOf( args[i].toUpperCase() );
+                    }
+                    i++;
+                }
+            } else if ( "-df".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    if ( index instanceof PersistentHashedIndex persistent ) {
+                        persistent.dataFormat = PostingsFormat.valueOf( args[i].toUpperCase() );
+                    }
+                    i++;
+                }
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
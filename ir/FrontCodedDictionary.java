@@ -0,0 +1,264 @@
+package ir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A dictionary file holding the terms in sorted order, front-coded in blocks.
+ * <p>
+ * Terms are sorted by their UTF-8 bytes and split into blocks of
+ * {@link #BLOCK_SIZE} terms. Within a block, every term but the first is
+ * stored as the number of leading bytes it shares with the previous term and
+ * the bytes that follow. Every term is followed by its dictionary entry: the
+ * data pointer (as the difference to the end of the previous term's data,
+ * which is 0 when the data is written in term order), the data size and the
+ * two score upper bounds.
+ * <p>
+ * The file starts with a header and the block index, which holds the first
+ * term and the offset of every block. The whole file is read into memory:
+ * an exact lookup binary searches the block index and decodes at most one
+ * block, and a prefix scan decodes the blocks from the first term with the
+ * prefix onwards.
+ */
+public final class FrontCodedDictionary {
+
+    /** The first bytes of a front-coded dictionary file, "FCD" and a version. */
+    public static final int MAGIC = 0x46434401;
+
+    /** Number of terms per block. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** magic, block size, term count, block count, longest term, offset of the first block */
+    private static final int HEADER_SIZE = 6 * Integer.BYTES;
+
+    private final byte[] data;
+    private final int termCount;
+    private final int maxTermLength;
+    private final byte[][] firstTerms;
+    private final int[] blockOffsets;
+
+    private FrontCodedDictionary(byte[] data) throws IOException {
+        this.data = data;
+        var buf = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || buf.getInt() != MAGIC) {
+            throw new IOException("Not a front-coded dictionary");
+        }
+        if (buf.getInt() != BLOCK_SIZE) {
+            throw new IOException("Unsupported block size");
+        }
+        termCount = buf.getInt();
+        var blockCount = buf.getInt();
+        maxTermLength = buf.getInt();
+        var blocksStart = buf.getInt();
+        firstTerms = new byte[blockCount][];
+        blockOffsets = new int[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            blockOffsets[b] = blocksStart + PostingsCodec.readVInt(buf);
+            firstTerms[b] = new byte[PostingsCodec.readVInt(buf)];
+            buf.get(firstTerms[b]);
+        }
+    }
+
+    /** Reads a front-coded dictionary file into memory. */
+    public static FrontCodedDictionary read(Path file) throws IOException {
+        return new FrontCodedDictionary(Files.readAllBytes(file));
+    }
+
+    /** Number of terms in the dictionary. */
+    public int size() {
+        return termCount;
+    }
+
+    /** Size of the dictionary file, in bytes. */
+    public int sizeInBytes() {
+        return data.length;
+    }
+
+
+    /**
+     * Encodes the entries, which may come in any order, as a dictionary file.
+     */
+    public static byte[] encode(List<PersistentHashedIndex.Entry> entries) {
+        var terms = new byte[entries.size()][];
+        var order = new Integer[entries.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = entries.get(i).token.getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(terms[a], terms[b]));
+
+        var blockCount = (terms.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        var index = new PostingsCodec.Encoder(16 * blockCount);
+        var blocks = new PostingsCodec.Encoder(16 * terms.length);
+        var maxTermLength = 0;
+        byte[] previous = null;
+        var expectedPtr = 0L;
+        for (int i = 0; i < terms.length; i++) {
+            var term = terms[order[i]];
+            var entry = entries.get(order[i]);
+            maxTermLength = Math.max(maxTermLength, term.length);
+            if (i % BLOCK_SIZE == 0) {
+                // The first term of a block is only stored in the block index,
+                // and its data pointer is stored as is
+                expectedPtr = 0;
+                index.writeVInt(blocks.length());
+                index.writeVInt(term.length);
+                index.write(term, 0, term.length);
+            } else {
+                var prefix = Arrays.mismatch(previous, term);
+                if (prefix < 0) {
+                    throw new IllegalArgumentException("Duplicate term " + entry.token);
+                }
+                blocks.writeVInt(prefix);
+                blocks.writeVInt(term.length - prefix);
+                blocks.write(term, prefix, term.length - prefix);
+            }
+            var delta = entry.dataPtr - expectedPtr;
+            blocks.writeVLong((delta << 1) ^ (delta >> 63));
+            blocks.writeVInt(entry.dataSize);
+            writeInt(blocks, Float.floatToIntBits(entry.lengthBound));
+            writeInt(blocks, Float.floatToIntBits(entry.normBound));
+            expectedPtr = entry.dataPtr + entry.dataSize;
+            previous = term;
+        }
+
+        var buf = ByteBuffer.allocate(HEADER_SIZE + index.length() + blocks.length());
+        buf.putInt(MAGIC).putInt(BLOCK_SIZE).putInt(terms.length).putInt(blockCount).putInt(maxTermLength);
+        buf.putInt(HEADER_SIZE + index.length());
+        buf.put(index.toByteArray()).put(blocks.toByteArray());
+        return buf.array();
+    }
+
+    private static void writeInt(PostingsCodec.Encoder out, int value) {
+        out.writeByte(value >>> 24);
+        out.writeByte(value >>> 16);
+        out.writeByte(value >>> 8);
+        out.writeByte(value);
+    }
+
+
+    /**
+     * Returns the entry of the token, or null if it is not in the dictionary.
+     */
+    public PersistentHashedIndex.Entry find(String token) {
+        var key = token.getBytes(StandardCharsets.UTF_8);
+        var block = lastBlockAtOrBefore(key);
+        if (block < 0) {
+            return null;
+        }
+        var cursor = new Cursor(block);
+        while (cursor.next()) {
+            var cmp = Arrays.compareUnsigned(cursor.term, 0, cursor.length, key, 0, key.length);
+            if (cmp == 0) {
+                return cursor.entry(token);
+            } else if (cmp > 0) {
+                return null;
+            }
+            if (cursor.atBlockEnd()) {
+                // The next block starts with a term after the token
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entries of all terms starting with the prefix, in the
+     * order of their UTF-8 bytes.
+     */
+    public List<PersistentHashedIndex.Entry> prefix(String prefix) {
+        var key = prefix.getBytes(StandardCharsets.UTF_8);
+        var result = new ArrayList<PersistentHashedIndex.Entry>();
+        var cursor = new Cursor(Math.max(lastBlockAtOrBefore(key), 0));
+        while (cursor.next()) {
+            var cmp = Arrays.compareUnsigned(cursor.term, 0, Math.min(cursor.length, key.length), key, 0, key.length);
+            if (cmp == 0 && cursor.length >= key.length) {
+                result.add(cursor.entry(new String(cursor.term, 0, cursor.length, StandardCharsets.UTF_8)));
+            } else if (cmp > 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /** The index of the last block whose first term is at most the key, or -1. */
+    private int lastBlockAtOrBefore(byte[] key) {
+        int lo = 0, hi = firstTerms.length - 1, result = -1;
+        while (lo <= hi) {
+            var mid = (lo + hi) >>> 1;
+            if (Arrays.compareUnsigned(firstTerms[mid], key) <= 0) {
+                result = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Decodes the terms and entries from the start of a block to the end
+     * of the dictionary.
+     */
+    private final class Cursor {
+        final byte[] term = new byte[maxTermLength];
+        int length;
+        private final ByteBuffer buf;
+        private int block;
+        private int index;
+        private long dataPtr;
+        private int dataSize;
+        private float lengthBound;
+        private float normBound;
+
+        Cursor(int block) {
+            this.block = block;
+            index = block * BLOCK_SIZE - 1;
+            buf = ByteBuffer.wrap(data);
+            if (block < blockOffsets.length) {
+                buf.position(blockOffsets[block]);
+            }
+        }
+
+        /** Moves to the next term; returns false after the last one. */
+        boolean next() {
+            if (++index >= termCount) {
+                return false;
+            }
+            if (index % BLOCK_SIZE == 0) {
+                block = index / BLOCK_SIZE;
+                length = firstTerms[block].length;
+                System.arraycopy(firstTerms[block], 0, term, 0, length);
+                dataPtr = 0;
+                dataSize = 0;
+            } else {
+                var prefix = PostingsCodec.readVInt(buf);
+                var suffix = PostingsCodec.readVInt(buf);
+                buf.get(term, prefix, suffix);
+                length = prefix + suffix;
+            }
+            var zigzag = PostingsCodec.readVLong(buf);
+            dataPtr = dataPtr + dataSize + ((zigzag >>> 1) ^ -(zigzag & 1));
+            dataSize = PostingsCodec.readVInt(buf);
+            lengthBound = Float.intBitsToFloat(buf.getInt());
+            normBound = Float.intBitsToFloat(buf.getInt());
+            return true;
+        }
+
+        /** Whether the current term is the last of its block. */
+        boolean atBlockEnd() {
+            return index % BLOCK_SIZE == BLOCK_SIZE - 1;
+        }
+
+        PersistentHashedIndex.Entry entry(String token) {
+            return new PersistentHashedIndex.Entry(token, dataPtr, dataSize, lengthBound, normBound);
+        }
+    }
+}
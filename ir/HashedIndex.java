@@ -9,16 +9,29 @@
 package ir;
 
 import java.util.HashMap;
+import java.util.Map;
 
 
 /**
  * Implements an inverted index as a Hashtable from words to PostingsLists.
+ * <p>
+ * Searches only see the index once it is published by {@link #cleanup}, so
+ * they can run while documents are being inserted.
  */
 public class HashedIndex implements Index {
 
     /** The index as a hashtable. */
     private final HashMap<String, PostingsList> index = new HashMap<>();
 
+    /** The largest tf / length and tf / norm of every term, computed on cleanup. */
+    private final HashMap<String, float[]> upperBounds = new HashMap<>();
+
+    /** The index that searches read from, which is not modified once published. */
+    private volatile Map<String, PostingsList> published = Map.of();
+
+    /** The upper bounds of the published index. */
+    private volatile Map<String, float[]> publishedBounds = Map.of();
+
 
     /**
      * Inserts this token in the hashtable.
@@ -29,18 +42,58 @@ public class HashedIndex implements Index {
     }
 
 
+    /**
+     * Inserts a complete postings list for this token in the hashtable.
+     */
+    @Override
+    public void insert(String token, PostingsList postings) {
+        index.merge(token, postings, PostingsList::concat);
+    }
+
+
     /**
      * Returns the postings for a specific term, or null
      * if the term is not in the index.
      */
     public PostingsList getPostings(String token) {
-        return index.get(token);
+        return published.get(token);
+    }
+
+
+    /**
+     * Returns the upper bound of a term computed on cleanup.
+     */
+    @Override
+    public double upperBound(String token, NormalizationType normType) {
+        var bounds = publishedBounds.get(token);
+        if (bounds == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return normType == NormalizationType.EUCLIDEAN ? bounds[1] : bounds[0];
     }
 
 
     /**
-     * No need for cleanup in a HashedIndex.
+     * Computes the Euclidean norms of the document vectors, and the
+     * score upper bounds of every term, and publishes the index. Tokens
+     * inserted after this change the published lists, so they must not be
+     * inserted while searches run.
      */
     public void cleanup() {
+        var n = docNames.size();
+        var sumsOfSquares = TfIdf.newDocumentArray();
+        for (var list : index.values()) {
+            TfIdf.addSquaredWeights(list.iterator(), n, sumsOfSquares);
+        }
+        var norms = TfIdf.storeNorms(sumsOfSquares, docNorms);
+        var lengths = TfIdf.documentLengths();
+        upperBounds.clear();
+        for (var entry : index.entrySet()) {
+            var list = entry.getValue();
+            upperBounds.put(entry.getKey(), new float[]{
+                    TfIdf.maxTfRatio(list.iterator(), lengths), TfIdf.maxTfRatio(list.iterator(), norms)});
+        }
+        publishedBounds = Map.copyOf(upperBounds);
+        published = Map.copyOf(index);
     }
 }
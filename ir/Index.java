@@ -7,8 +7,8 @@
 
 package ir;
 
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -17,17 +17,59 @@ import java.util.Iterator;
 public interface Index {
 
     /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+    public ConcurrentHashMap<Integer,String> docNames = new ConcurrentHashMap<Integer,String>();
     
     /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    public ConcurrentHashMap<Integer,Integer> docLengths = new ConcurrentHashMap<Integer,Integer>();
+
+    /** Mapping from document identifier to the Euclidean norm of its tf-idf vector. */
+    public ConcurrentHashMap<Integer,Double> docNorms = new ConcurrentHashMap<Integer,Double>();
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
+    /**
+     *  Inserts a complete postings list for a token. All its docIDs must come
+     *  after the docIDs already inserted for the token.
+     */
+    public default void insert( String token, PostingsList postings ) {
+        int[] positions = postings.positions();
+        for ( int i=0; i<postings.size(); i++ ) {
+            for ( int j=postings.positionStart( i ); j<postings.positionEnd( i ); j++ ) {
+                insert( token, postings.docID( i ), positions[j] );
+            }
+        }
+    }
+
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /** Returns an iterator over the postings for a given term, or null if the term is not in the index. */
+    public default PostingsIterator iterator( String token ) {
+        PostingsList list = getPostings( token );
+        return list == null ? null : list.iterator();
+    }
+
+    /**
+     *  Returns the number of documents containing a term, or 0 if the term is
+     *  not in the index. Indexes that store it override this, so that the
+     *  postings need not be read.
+     */
+    public default int docFrequency( String token ) {
+        PostingsIterator postings = iterator( token );
+        return postings == null ? 0 : postings.docFrequency();
+    }
+
+    /**
+     *  Returns an upper bound of tf / length over the postings of a term, where
+     *  length is the length of the document under the given normalization.
+     *  Ranked queries use it to skip documents that cannot make the top results.
+     *  Indexes that keep no bounds return infinity.
+     */
+    public default double upperBound( String token, NormalizationType normType ) {
+        return Double.POSITIVE_INFINITY;
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
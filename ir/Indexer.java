@@ -9,7 +9,13 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.nio.charset.*;
+import java.nio.file.Files;
 
 
 /**
@@ -24,11 +30,23 @@ public class Indexer {
     KGramIndex kgIndex;
 
     /** The next docID to be generated. */
-    private int lastDocID = 0;
+    private final AtomicInteger lastDocID = new AtomicInteger( 0 );
+
+    /** Number of threads tokenizing files in processFilesParallel. */
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Maximum number of files read into memory but not yet tokenized, per thread. */
+    static final int FILES_IN_FLIGHT_PER_THREAD = 8;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** The tokenizer of processFiles, reset for every file. */
+    private Tokenizer tokenizer = null;
+
+    /** The tokens seen by processFiles, so every token is made into a String once. */
+    private final TokenTable tokens = new TokenTable();
+
 
     /* ----------------------------------------------- */
 
@@ -41,9 +59,18 @@ public class Indexer {
     }
 
 
+    /** 
+     *  Creates a tokenizer for documents, to be reset to the reader of
+     *  every document.
+     */
+    private Tokenizer newTokenizer() {
+        return new Tokenizer( null, true, false, true, patterns_file );
+    }
+
+
     /** Generates a new document identifier as an integer. */
     private int generateDocID() {
-        return lastDocID++;
+        return lastDocID.getAndIncrement();
     }
 
 
@@ -70,14 +97,15 @@ public class Indexer {
                     if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
                     try {
                         Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
+                        if ( tokenizer == null ) {
+                            tokenizer = newTokenizer();
                         }
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
+                        tokenizer.reset( reader );
+                        int[] offset = { 0 };
+                        tokenizer.tokenize( ( chars, start, length ) ->
+                            insertIntoIndex( docID, tokens.intern( chars, start, length ), offset[0]++ ));
+                        Index.docNames.put( docID, f.getPath() );
+                        Index.docLengths.put( docID, offset[0] );
                         reader.close();
                     } catch ( IOException e ) {
                         System.err.println( "Warning: IOException during indexing." );
@@ -91,6 +119,270 @@ public class Indexer {
     /* ----------------------------------------------- */
 
 
+    /**
+     *  Tokenizes and indexes all files below the directory (or the file)
+     *  <code>f</code>, using several threads.
+     *
+     *  Files are read on virtual threads and tokenized on a pool of
+     *  <code>threads</code> worker threads. Every worker inserts into its own
+     *  segment, a map from tokens to postings lists, and takes a new docID for
+     *  every document it starts, so the docIDs in a segment are increasing.
+     *  Every worker also has its own tokenizer and token table.
+     *  The lists of each token are merged across the segments and inserted
+     *  into the index when all files are done, or before that when the
+     *  estimated heap size of the segments reaches the flush budget of a
+     *  scalable index. The workers then wait for the documents being
+     *  tokenized, so every document indexed afterwards has a larger docID,
+     *  and the index writes what it got to a segment file.
+     *  Files that cannot be read or indexed are reported and skipped.
+     */
+    public void processFilesParallel( File f ) {
+        List<File> files = new ArrayList<File>();
+        collectFiles( f, files );
+        Queue<HashMap<String,PostingsList>> segments = new ConcurrentLinkedQueue<HashMap<String,PostingsList>>();
+        ThreadLocal<HashMap<String,PostingsList>> segment = ThreadLocal.withInitial( () -> {
+            HashMap<String,PostingsList> s = new HashMap<String,PostingsList>();
+            segments.add( s );
+            return s;
+        });
+        ThreadLocal<Tokenizer> tokenizers = ThreadLocal.withInitial( this::newTokenizer );
+        ThreadLocal<TokenTable> tables = ThreadLocal.withInitial( TokenTable::new );
+        Semaphore inFlight = new Semaphore( threads * FILES_IN_FLIGHT_PER_THREAD );
+        // Workers tokenize under the read lock, and the segments are flushed under the write lock
+        ReadWriteLock flushLock = new ReentrantReadWriteLock();
+        AtomicLong segmentBytes = new AtomicLong();
+        long flushBytes = index instanceof PersistentScalableHashedIndex
+            ? ((PersistentScalableHashedIndex) index).flushBytes() : Long.MAX_VALUE;
+        List<Future<?>> readerTasks = new ArrayList<Future<?>>();
+        Queue<Future<?>> workerTasks = new ConcurrentLinkedQueue<Future<?>>();
+        ExecutorService workers = Executors.newFixedThreadPool( threads );
+        try ( ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor() ) {
+            for ( File file : files ) {
+                inFlight.acquireUninterruptibly();
+                readerTasks.add( readers.submit( () -> {
+                    boolean handedOver = false;
+                    try {
+                        String contents = new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+                        workerTasks.add( workers.submit( () -> {
+                            long bytes;
+                            flushLock.readLock().lock();
+                            try {
+                                bytes = indexDocument( file, new StringReader( contents ), segment.get(), tokenizers.get(), tables.get() );
+                            } finally {
+                                flushLock.readLock().unlock();
+                                inFlight.release();
+                            }
+                            if ( segmentBytes.addAndGet( bytes ) >= flushBytes ) {
+                                flushSegments( segments, segmentBytes, flushBytes, flushLock );
+                            }
+                        }));
+                        handedOver = true;
+                    } catch ( IOException e ) {
+                        System.err.println( "Warning: IOException during indexing." );
+                    } finally {
+                        if ( !handedOver ) {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination( Long.MAX_VALUE, TimeUnit.DAYS );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        int failed = 0;
+        for ( Future<?> task : readerTasks ) {
+            failed += reportFailure( task );
+        }
+        for ( Future<?> task : workerTasks ) {
+            failed += reportFailure( task );
+        }
+        if ( failed > 0 ) {
+            System.err.println( "Warning: " + failed + " files could not be indexed." );
+        }
+        mergeSegments( new ArrayList<HashMap<String,PostingsList>>( segments ));
+    }
+
+
+    /**
+     *  Inserts the segments of processFilesParallel into the index once no
+     *  document is being tokenized, unless another worker just did, and has
+     *  the index write them to a segment file.
+     */
+    private void flushSegments( Queue<HashMap<String,PostingsList>> segments, AtomicLong segmentBytes, long flushBytes, ReadWriteLock flushLock ) {
+        flushLock.writeLock().lock();
+        try {
+            if ( segmentBytes.get() >= flushBytes ) {
+                mergeSegments( new ArrayList<HashMap<String,PostingsList>>( segments ));
+                ((PersistentScalableHashedIndex) index).writeSegment();
+                segmentBytes.set( 0 );
+            }
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+
+    /** Prints the exception of a finished task, and returns 1 if there was one. */
+    private static int reportFailure( Future<?> task ) {
+        try {
+            task.get();
+            return 0;
+        } catch ( ExecutionException e ) {
+            e.getCause().printStackTrace();
+            return 1;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+
+    /**
+     *  Brings a persistent index up to date with the files below the
+     *  directories <code>dirNames</code>, without rebuilding it.
+     *
+     *  Files that are not in the index, or that were modified after it was
+     *  indexed, are indexed with docIDs following the ones in the index.
+     *  The old documents of modified files, and the documents whose files
+     *  are gone, are deleted.
+     */
+    public void updateFiles( List<String> dirNames, PersistentHashedIndex persistent ) {
+        long startedAt = System.currentTimeMillis();
+        HashMap<String,Integer> indexed = new HashMap<String,Integer>();
+        for ( Map.Entry<Integer,String> e : Index.docNames.entrySet() ) {
+            indexed.put( e.getValue(), e.getKey() );
+        }
+        List<File> files = new ArrayList<File>();
+        for ( String dirName : dirNames ) {
+            collectFiles( new File( dirName ), files );
+        }
+        BitSet removed = new BitSet();
+        List<File> changed = new ArrayList<File>();
+        for ( File f : files ) {
+            Integer docID = indexed.remove( f.getPath() );
+            if ( docID == null ) {
+                changed.add( f );
+            } else if ( f.lastModified() >= persistent.indexedAt() ) {
+                removed.set( docID );
+                changed.add( f );
+            }
+        }
+        // The documents left are the ones whose files are gone
+        for ( int docID : indexed.values() ) {
+            removed.set( docID );
+        }
+        lastDocID.set( persistent.nextDocID() );
+        HashMap<String,PostingsList> segment = new HashMap<String,PostingsList>();
+        if ( tokenizer == null ) {
+            tokenizer = newTokenizer();
+        }
+        for ( File f : changed ) {
+            try ( Reader reader = new InputStreamReader( new FileInputStream( f ), StandardCharsets.UTF_8 )) {
+                indexDocument( f, reader, segment, tokenizer, tokens );
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException during indexing." );
+            }
+        }
+        if ( kgIndex != null ) {
+            for ( String token : segment.keySet() ) {
+                kgIndex.insert( token );
+            }
+        }
+        System.err.println( "Indexed " + changed.size() + " new or modified files" );
+        try {
+            persistent.update( segment, removed, lastDocID.get(), startedAt );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /** Adds all readable files below <code>f</code> to <code>files</code>. */
+    private void collectFiles( File f, List<File> files ) {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        collectFiles( new File( f, fs[i] ), files );
+                    }
+                }
+            } else {
+                files.add( f );
+            }
+        }
+    }
+
+
+    /**
+     *  Tokenizes one document into a segment, and returns by how much the
+     *  estimated heap size of the segment grew, counted like the main-memory
+     *  index of a scalable index counts it.
+     */
+    private long indexDocument( File f, Reader reader, HashMap<String,PostingsList> segment, Tokenizer tok, TokenTable table ) {
+        int docID = generateDocID();
+        if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+        long[] bytes = { 0 };
+        try {
+            tok.reset( reader );
+            int[] offset = { 0 };
+            tok.tokenize( ( chars, start, length ) -> {
+                String token = table.intern( chars, start, length );
+                PostingsList list = segment.get( token );
+                if ( list == null ) {
+                    list = new PostingsList();
+                    segment.put( token, list );
+                    bytes[0] += PersistentScalableHashedIndex.TERM_OVERHEAD + 2L * token.length();
+                } else {
+                    bytes[0] -= list.estimatedBytes();
+                }
+                list.add( docID, offset[0]++ );
+                bytes[0] += list.estimatedBytes();
+            });
+            Index.docNames.put( docID, f.getPath() );
+            Index.docLengths.put( docID, offset[0] );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException during indexing." );
+        }
+        return bytes[0];
+    }
+
+
+    /**
+     *  Merges the postings lists of every token across the segments and
+     *  inserts them into the index, emptying the segments as it goes.
+     */
+    private void mergeSegments( List<HashMap<String,PostingsList>> segments ) {
+        for ( HashMap<String,PostingsList> segment : segments ) {
+            for ( Iterator<Map.Entry<String,PostingsList>> it = segment.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String,PostingsList> e = it.next();
+                it.remove();
+                List<PostingsList> lists = new ArrayList<PostingsList>();
+                lists.add( e.getValue() );
+                for ( HashMap<String,PostingsList> other : segments ) {
+                    if ( other != segment ) {
+                        PostingsList list = other.remove( e.getKey() );
+                        if ( list != null ) {
+                            lists.add( list );
+                        }
+                    }
+                }
+                index.insert( e.getKey(), PostingsList.merge( lists ));
+                if ( kgIndex != null ) {
+                    kgIndex.insert( e.getKey() );
+                }
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
     /**
      *  Indexes one token.
      */
@@ -8,23 +8,75 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.nio.charset.StandardCharsets;
 
 
+/**
+ *  An index from k-grams to the terms containing them.
+ *
+ *  Terms get consecutive IDs as they are inserted. The postings are built
+ *  from the whole vocabulary when they are first needed: every k-gram is
+ *  packed into a long, 16 bits per character, and the index is three flat
+ *  arrays, the sorted k-gram codes, the start of the postings of every
+ *  k-gram, and the term IDs of all postings one k-gram after the other.
+ *  Terms are visited in ID order, so every postings list is sorted, and no
+ *  object is allocated per k-gram or per posting.
+ *
+ *  Terms are padded with START and END, so "kth" has the 2-grams
+ *  "^k", "kt", "th" and "h$".
+ *
+ *  The index can be written to a file holding the same arrays, followed by
+ *  the terms, and read back by mapping the file into memory. The postings
+ *  are then used where they are in the file, and every term is only
+ *  decoded when it is asked for, until a new term is inserted.
+ */
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<Integer,String>();
+    /** The character before the first character of every term. */
+    public static final char START = '^';
+
+    /** The character after the last character of every term. */
+    public static final char END = '$';
+
+    /** The character standing for any characters in wildcard patterns. */
+    public static final char WILDCARD = '*';
+
+    /** The largest K for which a k-gram can be packed into a long. */
+    public static final int MAX_K = 4;
+
+    /** Size ratio above which intersections gallop through the longer list. */
+    static final int GALLOP_RATIO = PostingsList.GALLOP_RATIO;
+
+    /** The first bytes of a k-gram index file, "KGI" and a version. */
+    public static final int MAGIC = 0x4B474901;
+
+    /** magic, K, term count, k-gram count */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
 
-    /** Mapping from term strings to term ids */
-    HashMap<String,Integer> term2id = new HashMap<String,Integer>();
+    /** The terms, indexed by term ID, or null until the terms of a file are decoded. */
+    private volatile String[] id2term = new String[64];
 
-    /** Index from k-grams to list of term ids that contain the k-gram */
-    HashMap<String,List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
+    /** For the terms read from a file, the UTF-8 bytes of term i are termBytes[termOffsets[i] .. termOffsets[i+1]-1]. */
+    private IntBuffer termOffsets;
+    private ByteBuffer termBytes;
 
-    /** The ID of the last processed term */
-    int lastTermID = -1;
+    /** Hash table of term ID + 1 for every term, or 0 for an empty slot. */
+    private int[] term2id = new int[128];
+
+    /** Number of terms. Written after a term has been added, so readers see the whole term. */
+    private volatile int termCount = 0;
+
+    /** The k-gram postings, built from the first termCount terms. */
+    private volatile Postings postings = new Postings(LongBuffer.allocate(0), IntBuffer.wrap(new int[1]), IntBuffer.allocate(0), 0);
 
     /** Number of symbols to form a K-gram */
     int K = 3;
@@ -35,52 +87,544 @@ public class KGramIndex {
             System.err.println("The K-gram index can't be constructed for a negative K value");
             System.exit(1);
         }
-    }
-
-    /** Generate the ID for an unknown term */
-    private int generateTermID() {
-        return ++lastTermID;
+        if (k > MAX_K) {
+            System.err.println("The K-gram index can't be constructed for K larger than " + MAX_K);
+            System.exit(1);
+        }
     }
 
     public int getK() {
         return K;
     }
 
+    /** Number of terms in the index. */
+    public int size() {
+        return termCount;
+    }
+
+
+    /**
+     *  The postings of all k-grams: the postings of the k-gram with code
+     *  <code>codes[i]</code> are <code>termIDs[offsets[i] .. offsets[i+1]-1]</code>.
+     */
+    static final class Postings {
+        final LongBuffer codes;
+        final IntBuffer offsets;
+        final IntBuffer termIDs;
+        /** Number of terms the postings were built from. */
+        final int termCount;
+
+        Postings(LongBuffer codes, IntBuffer offsets, IntBuffer termIDs, int termCount) {
+            this.codes = codes;
+            this.offsets = offsets;
+            this.termIDs = termIDs;
+            this.termCount = termCount;
+        }
+
+        /** The index of the k-gram with the code, or -1. */
+        int find(long code) {
+            int lo = 0, hi = codes.limit() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long c = codes.get(mid);
+                if (c < code) {
+                    lo = mid + 1;
+                } else if (c > code) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+    }
+
 
     /**
-     *  Get intersection of two postings lists
+     *  Get intersection of two postings lists, which are sorted by term ID.
+     *
+     *  Lists of similar length are merged linearly. If one list is more
+     *  than GALLOP_RATIO times longer than the other, every term of the
+     *  short list is located in the long one by galloping (exponential
+     *  search from the previous match) instead.
      */
-    private List<KGramPostingsEntry> intersect(List<KGramPostingsEntry> p1, List<KGramPostingsEntry> p2) {
-        // 
-        // YOUR CODE HERE
-        //
-        return null;
+    public static IntBuffer intersect(IntBuffer p1, IntBuffer p2) {
+        IntBuffer small = p1.remaining() <= p2.remaining() ? p1 : p2;
+        IntBuffer large = small == p1 ? p2 : p1;
+        int[] result = new int[small.remaining()];
+        int count = (long) small.remaining() * GALLOP_RATIO < large.remaining()
+            ? gallopIntersect(small, large, result)
+            : mergeIntersect(small, large, result);
+        return IntBuffer.wrap(result, 0, count).slice();
     }
 
+    private static int mergeIntersect(IntBuffer a, IntBuffer b, int[] result) {
+        int count = 0;
+        int i = a.position(), j = b.position();
+        while (i < a.limit() && j < b.limit()) {
+            int x = a.get(i);
+            int y = b.get(j);
+            if (x == y) {
+                result[count++] = x;
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return count;
+    }
 
-    /** Inserts all k-grams from a token into the index. */
+    private static int gallopIntersect(IntBuffer small, IntBuffer large, int[] result) {
+        int count = 0;
+        int lo = large.position();
+        for (int i = small.position(); i < small.limit() && lo < large.limit(); i++) {
+            int x = small.get(i);
+            // Find a range [lo, hi] of the long list whose last element is >= x
+            int step = 1;
+            int hi = lo;
+            while (hi < large.limit() && large.get(hi) < x) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            hi = Math.min(hi, large.limit() - 1);
+            // Binary search for the first element >= x
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (large.get(mid) < x) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (lo < large.limit() && large.get(lo) == x) {
+                result[count++] = x;
+                lo++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     *  Inserts a term into the index, unless it is in it already. Its
+     *  k-grams are indexed the next time postings are needed.
+     *
+     *  Only one thread may insert at a time, but lookups can run meanwhile.
+     */
     public void insert( String token ) {
-        //
-        // YOUR CODE HERE
-        //
+        if (id2term == null) {
+            decodeTerms();
+        }
+        int mask = term2id.length - 1;
+        int i = mix(token.hashCode()) & mask;
+        for (int id = term2id[i]; id != 0; id = term2id[i]) {
+            if (id2term[id - 1].equals(token)) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        int id = termCount;
+        if (id == id2term.length) {
+            id2term = Arrays.copyOf(id2term, 2 * id);
+        }
+        id2term[id] = token;
+        term2id[i] = id + 1;
+        if (2 * (id + 1) > term2id.length) {
+            growTermTable();
+        }
+        termCount = id + 1;
     }
 
-    /** Get postings for the given k-gram */
-    public List<KGramPostingsEntry> getPostings(String kgram) {
-        //
-        // YOUR CODE HERE
-        //
-        return null;
+    private void growTermTable() {
+        int[] table = new int[2 * term2id.length];
+        int mask = table.length - 1;
+        for (int id : term2id) {
+            if (id != 0) {
+                int i = mix(id2term[id - 1].hashCode()) & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = id;
+            }
+        }
+        term2id = table;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+
+    /** Get postings for the given k-gram, or null if no term contains it */
+    public IntBuffer getPostings(String kgram) {
+        if (kgram.length() != K) {
+            return null;
+        }
+        Postings p = postings();
+        int g = p.find(pack(kgram, 0, K));
+        if (g < 0) {
+            return null;
+        }
+        return p.termIDs.slice(p.offsets.get(g), p.offsets.get(g + 1) - p.offsets.get(g));
     }
 
-    /** Get id of a term */
-    public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+    /**
+     *  Returns the terms matching a wildcard pattern, in which '*' stands
+     *  for any characters, like "mon*", "*tion" or "re*ing".
+     *
+     *  The candidates are the terms containing all k-grams of the pattern,
+     *  padded with START and END, that contain no '*'; the postings of these
+     *  k-grams are intersected shortest first. If the pattern has no such
+     *  k-gram, every term is a candidate. The candidates are then matched
+     *  against the pattern, because they may contain the k-grams in another
+     *  order.
+     *
+     *  @param limit The largest number of terms returned; the terms with the lowest IDs are kept.
+     */
+    public List<String> wildcardTerms(String pattern, int limit) {
+        Postings p = postings();
+        String padded = START + pattern + END;
+        ArrayList<IntBuffer> lists = new ArrayList<IntBuffer>();
+        for (int i = 0; i + K <= padded.length(); i++) {
+            int star = padded.indexOf(WILDCARD, i);
+            if (star < 0 || star >= i + K) {
+                IntBuffer list = getPostings(padded.substring(i, i + K));
+                if (list == null) {
+                    return List.of();
+                }
+                lists.add(list);
+            }
+        }
+        lists.sort(Comparator.comparingInt(IntBuffer::remaining));
+        IntBuffer candidates = lists.isEmpty() ? null : lists.get(0);
+        for (int i = 1; i < lists.size() && candidates.hasRemaining(); i++) {
+            candidates = intersect(candidates, lists.get(i));
+        }
+        ArrayList<String> terms = new ArrayList<String>();
+        int n = candidates == null ? p.termCount : candidates.remaining();
+        for (int i = 0; i < n && terms.size() < limit; i++) {
+            String term = getTermByID(candidates == null ? i : candidates.get(i));
+            if (matches(pattern, term)) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /** Whether the term matches the pattern, where '*' stands for any characters. */
+    static boolean matches(String pattern, String term) {
+        int p = 0, t = 0;
+        // Where the last '*' was seen, and the term position it was tried to match up to
+        int star = -1, starTerm = 0;
+        while (t < term.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+                star = p++;
+                starTerm = t;
+            } else if (p < pattern.length() && pattern.charAt(p) == term.charAt(t)) {
+                p++;
+                t++;
+            } else if (star >= 0) {
+                // Let the last '*' match one more character
+                p = star + 1;
+                t = ++starTerm;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /** The postings, which are first rebuilt if terms have been inserted since they were built. */
+    Postings postings() {
+        Postings p = postings;
+        if (p.termCount == termCount) {
+            return p;
+        }
+        synchronized (this) {
+            if (postings.termCount != termCount) {
+                postings = build(termCount);
+            }
+            return postings;
+        }
+    }
+
+    /**
+     *  Builds the postings of the first n terms in two passes over them.
+     *  The first pass counts the terms containing every k-gram, which gives
+     *  where the postings of every k-gram start, and the second one fills in
+     *  the term IDs.
+     */
+    private Postings build(int n) {
+        String[] terms = id2term;
+        CodeTable table = new CodeTable();
+        long[] grams = new long[64];
+        for (int id = 0; id < n; id++) {
+            if (grams.length < terms[id].length() + 2) {
+                grams = new long[terms[id].length() + 2];
+            }
+            int count = kgrams(terms[id], grams);
+            for (int i = 0; i < count; i++) {
+                table.count(grams[i]);
+            }
+        }
+        long[] codes = table.sortedCodes();
+        int[] offsets = new int[codes.length + 1];
+        for (int g = 0; g < codes.length; g++) {
+            offsets[g + 1] = offsets[g] + table.countOf(codes[g]);
+            // From here on, the table maps every code to where its next posting goes
+            table.set(codes[g], offsets[g]);
+        }
+        int[] termIDs = new int[offsets[codes.length]];
+        for (int id = 0; id < n; id++) {
+            int count = kgrams(terms[id], grams);
+            for (int i = 0; i < count; i++) {
+                termIDs[table.increment(grams[i])] = id;
+            }
+        }
+        return new Postings(LongBuffer.wrap(codes), IntBuffer.wrap(offsets), IntBuffer.wrap(termIDs).asReadOnlyBuffer(), n);
+    }
+
+    /**
+     *  Writes the distinct codes of the k-grams of a term, padded with START
+     *  and END, in increasing order to <code>grams</code>, which must have
+     *  room for the length of the term plus two.
+     *
+     *  @return The number of distinct k-grams of the term.
+     */
+    int kgrams(String term, long[] grams) {
+        int length = term.length() + 2;
+        long mask = K == MAX_K ? -1L : (1L << (16 * K)) - 1;
+        long code = 0;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = i == 0 ? START : i == length - 1 ? END : term.charAt(i - 1);
+            code = ((code << 16) | c) & mask;
+            if (i >= K - 1) {
+                grams[n++] = code;
+            }
+        }
+        Arrays.sort(grams, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return distinct;
+    }
+
+    /** The code of the k-gram <code>s[from .. from+k-1]</code>. */
+    static long pack(CharSequence s, int from, int k) {
+        long code = 0;
+        for (int i = from; i < from + k; i++) {
+            code = (code << 16) | s.charAt(i);
+        }
+        return code;
+    }
+
+
+    /**
+     *  A hash table from k-gram codes to counts, used while building the
+     *  postings.
+     */
+    private static final class CodeTable {
+        private long[] codes = new long[1024];
+        private int[] values = new int[1024];
+        private boolean[] used = new boolean[1024];
+        private int size = 0;
+
+        private int slot(long code) {
+            int mask = codes.length - 1;
+            int i = (int) (code * 0x9E3779B97F4A7C15L >>> 32) & mask;
+            while (used[i] && codes[i] != code) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        void count(long code) {
+            int i = slot(code);
+            if (!used[i]) {
+                used[i] = true;
+                codes[i] = code;
+                if (++size * 2 > codes.length) {
+                    grow();
+                    i = slot(code);
+                }
+            }
+            values[i]++;
+        }
+
+        int countOf(long code) {
+            return values[slot(code)];
+        }
+
+        void set(long code, int value) {
+            values[slot(code)] = value;
+        }
+
+        /** Returns the value of the code, and adds one to it. */
+        int increment(long code) {
+            return values[slot(code)]++;
+        }
+
+        long[] sortedCodes() {
+            long[] result = new long[size];
+            int n = 0;
+            for (int i = 0; i < codes.length; i++) {
+                if (used[i]) {
+                    result[n++] = codes[i];
+                }
+            }
+            Arrays.sort(result);
+            return result;
+        }
+
+        private void grow() {
+            long[] oldCodes = codes;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            codes = new long[2 * oldCodes.length];
+            values = new int[codes.length];
+            used = new boolean[codes.length];
+            for (int i = 0; i < oldCodes.length; i++) {
+                if (oldUsed[i]) {
+                    int j = slot(oldCodes[i]);
+                    used[j] = true;
+                    codes[j] = oldCodes[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+
+
+    /** Get id of a term, or -1 if it is not in the index */
+    public int getIDByTerm(String term) {
+        if (id2term == null) {
+            decodeTerms();
+        }
+        int[] table = term2id;
+        int mask = table.length - 1;
+        int i = mix(term.hashCode()) & mask;
+        for (int id = table[i]; id != 0; id = table[i]) {
+            if (id2term[id - 1].equals(term)) {
+                return id - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
     }
 
     /** Get a term by the given id */
-    public String getTermByID(Integer id) {
-        return id2term.get(id);
+    public String getTermByID(int id) {
+        String[] terms = id2term;
+        if (terms != null) {
+            return terms[id];
+        }
+        int start = termOffsets.get(id);
+        byte[] bytes = new byte[termOffsets.get(id + 1) - start];
+        termBytes.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Decodes all terms read from a file, so that terms can be looked up and inserted. */
+    private synchronized void decodeTerms() {
+        if (id2term != null) {
+            return;
+        }
+        int n = termCount;
+        String[] terms = new String[Math.max(64, Integer.highestOneBit(Math.max(n, 1)) * 2)];
+        for (int id = 0; id < n; id++) {
+            terms[id] = getTermByID(id);
+        }
+        int[] table = new int[Integer.highestOneBit(Math.max(2 * n, 64)) * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < n; id++) {
+            int i = mix(terms[id].hashCode()) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+        term2id = table;
+        id2term = terms;
+    }
+
+
+    /**
+     *  Writes the index to a file, which replaces the file atomically, so
+     *  an index that has mapped the old file can still use it.
+     */
+    public void write(Path file) throws IOException {
+        Postings p = postings();
+        ByteArrayOutputStream terms = new ByteArrayOutputStream();
+        int[] offsets = new int[p.termCount + 1];
+        for (int id = 0; id < p.termCount; id++) {
+            terms.write(getTermByID(id).getBytes(StandardCharsets.UTF_8));
+            offsets[id + 1] = terms.size();
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + PersistentHashedIndex.NEW_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            int gramCount = p.codes.limit();
+            out.writeInt(MAGIC);
+            out.writeInt(K);
+            out.writeInt(p.termCount);
+            out.writeInt(gramCount);
+            for (int g = 0; g < gramCount; g++) {
+                out.writeLong(p.codes.get(g));
+            }
+            for (int g = 0; g <= gramCount; g++) {
+                out.writeInt(p.offsets.get(g));
+            }
+            for (int i = 0; i < p.offsets.get(gramCount); i++) {
+                out.writeInt(p.termIDs.get(i));
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            terms.writeTo(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     *  Reads an index written by write, mapping the file into memory.
+     */
+    public static KGramIndex read(Path file) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a k-gram index file");
+        }
+        KGramIndex kgIndex = new KGramIndex(buf.getInt(Integer.BYTES));
+        int termCount = buf.getInt(2 * Integer.BYTES);
+        int gramCount = buf.getInt(3 * Integer.BYTES);
+        int at = HEADER_SIZE;
+        LongBuffer codes = buf.slice(at, Long.BYTES * gramCount).asLongBuffer();
+        at += Long.BYTES * gramCount;
+        IntBuffer offsets = buf.slice(at, Integer.BYTES * (gramCount + 1)).asIntBuffer();
+        at += Integer.BYTES * (gramCount + 1);
+        int postingCount = offsets.get(gramCount);
+        IntBuffer termIDs = buf.slice(at, Integer.BYTES * postingCount).asIntBuffer();
+        at += Integer.BYTES * postingCount;
+        kgIndex.termOffsets = buf.slice(at, Integer.BYTES * (termCount + 1)).asIntBuffer();
+        at += Integer.BYTES * (termCount + 1);
+        kgIndex.termBytes = buf.slice(at, buf.limit() - at);
+        kgIndex.postings = new Postings(codes, offsets, termIDs, termCount);
+        kgIndex.id2term = null;
+        kgIndex.termCount = termCount;
+        return kgIndex;
     }
 
     private static HashMap<String,String> decodeArgs( String[] args ) {
@@ -130,30 +674,34 @@ public class KGramIndex {
         }
 
         String[] kgrams = args.get("kgram").split(" ");
-        List<KGramPostingsEntry> postings = null;
+        IntBuffer postings = null;
         for (String kgram : kgrams) {
             if (kgram.length() != k) {
                 System.err.println("Cannot search k-gram index: " + kgram.length() + "-gram provided instead of " + k + "-gram");
                 System.exit(1);
             }
 
-            if (postings == null) {
-                postings = kgIndex.getPostings(kgram);
+            IntBuffer p = kgIndex.getPostings(kgram);
+            if (p == null) {
+                postings = null;
+                break;
+            } else if (postings == null) {
+                postings = p;
             } else {
-                postings = kgIndex.intersect(postings, kgIndex.getPostings(kgram));
+                postings = intersect(postings, p);
             }
         }
         if (postings == null) {
             System.err.println("Found 0 posting(s)");
         } else {
-            int resNum = postings.size();
+            int resNum = postings.remaining();
             System.err.println("Found " + resNum + " posting(s)");
             if (resNum > 10) {
                 System.err.println("The first 10 of them are:");
                 resNum = 10;
             }
             for (int i = 0; i < resNum; i++) {
-                System.err.println(kgIndex.getTermByID(postings.get(i).tokenID));
+                System.err.println(kgIndex.getTermByID(postings.get(i)));
             }
         }
     }
@@ -0,0 +1,99 @@
+package ir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only file mapped into memory.
+ * <p>
+ * A single mapping cannot be larger than 2 GB, so the file is mapped in
+ * chunks of {@link #CHUNK_SIZE} bytes. Consecutive chunks overlap by
+ * {@link #OVERLAP} bytes, which lets any record shorter than that be read
+ * from the chunk it starts in.
+ */
+public class MappedFile {
+
+    /** Number of bytes starting in each chunk. */
+    public static final long CHUNK_SIZE = 1L << 30;
+
+    /** Number of bytes each chunk extends into the next one. */
+    public static final int OVERLAP = 1 << 16;
+
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    /**
+     * Maps the whole file into memory.
+     */
+    public MappedFile(String fileName) throws IOException {
+        try (var channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            length = channel.size();
+            chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                var start = i * CHUNK_SIZE;
+                var size = Math.min(CHUNK_SIZE + OVERLAP, length - start);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+    }
+
+    /** The length of the mapped file. */
+    public long length() {
+        return length;
+    }
+
+    private MappedByteBuffer chunk(long ptr) {
+        return chunks[(int) (ptr / CHUNK_SIZE)];
+    }
+
+    private static int offset(long ptr) {
+        return (int) (ptr % CHUNK_SIZE);
+    }
+
+    public byte getByte(long ptr) {
+        return chunk(ptr).get(offset(ptr));
+    }
+
+    public int getInt(long ptr) {
+        return chunk(ptr).getInt(offset(ptr));
+    }
+
+    public long getLong(long ptr) {
+        return chunk(ptr).getLong(offset(ptr));
+    }
+
+    /**
+     * Copies <code>length</code> bytes starting at <code>ptr</code> into <code>dst</code>.
+     */
+    public void get(long ptr, byte[] dst, int dstOffset, int length) {
+        while (length > 0) {
+            var chunk = chunk(ptr);
+            var offset = offset(ptr);
+            var n = Math.min(length, chunk.limit() - offset);
+            chunk.get(offset, dst, dstOffset, n);
+            ptr += n;
+            dstOffset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Returns a buffer holding the <code>size</code> bytes starting at <code>ptr</code>.
+     * The buffer shares memory with the mapping unless the range crosses the
+     * end of a chunk, in which case the bytes are copied.
+     */
+    public ByteBuffer slice(long ptr, int size) {
+        var chunk = chunk(ptr);
+        var offset = offset(ptr);
+        if (offset + size <= chunk.limit()) {
+            return chunk.slice(offset, size);
+        }
+        var data = new byte[size];
+        get(ptr, data, 0, size);
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,337 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Tells whether a pattern can possibly match inside a token, without running
+ * the pattern.
+ * <p>
+ * When the filter is created, the regular expression is scanned for the
+ * elements that every match must contain: characters and character classes
+ * that are not optional and not part of an alternative. A token can only
+ * contain a match if it contains at least one character of each such
+ * element. Most patterns for non-standard words require some punctuation,
+ * like the '@' of an e-mail address, so plain words are rejected by looking
+ * at their characters once instead of running every pattern on them.
+ * <p>
+ * Only ASCII characters are tracked. Elements that the scan does not
+ * understand impose no requirement, and a pattern using constructs that
+ * could make the scan wrong (inline flags, quoting, back references and
+ * the like) gets a filter that accepts every token, so the filter never
+ * rejects a token the pattern would match.
+ */
+public class PatternFilter {
+
+    private final Pattern pattern;
+
+    /** The required character sets, as pairs of masks over the ASCII characters 0-63 and 64-127. */
+    private final long[] required;
+
+    private PatternFilter(Pattern pattern, long[] required) {
+        this.pattern = pattern;
+        this.required = required;
+    }
+
+    public Pattern pattern() {
+        return pattern;
+    }
+
+    /** Number of character sets a token must intersect; 0 if every token is accepted. */
+    public int requirements() {
+        return required.length / 2;
+    }
+
+    /**
+     * Returns false if the pattern cannot match anywhere inside a token whose
+     * ASCII characters are given by the masks, as computed by {@link #lowMask}
+     * and {@link #highMask}.
+     */
+    public boolean mayMatch(long low, long high) {
+        for (int i = 0; i < required.length; i += 2) {
+            if ((required[i] & low) == 0 && (required[i + 1] & high) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The set of characters 0-63 among <code>chars[start .. start+length-1]</code>. */
+    public static long lowMask(char[] chars, int start, int length) {
+        var mask = 0L;
+        for (int i = start; i < start + length; i++) {
+            if (chars[i] < 64) {
+                mask |= 1L << chars[i];
+            }
+        }
+        return mask;
+    }
+
+    /** The set of characters 64-127 among <code>chars[start .. start+length-1]</code>. */
+    public static long highMask(char[] chars, int start, int length) {
+        var mask = 0L;
+        for (int i = start; i < start + length; i++) {
+            if (chars[i] >= 64 && chars[i] < 128) {
+                mask |= 1L << (chars[i] - 64);
+            }
+        }
+        return mask;
+    }
+
+
+    /** Creates the filter of a pattern. */
+    public static PatternFilter of(Pattern pattern) {
+        var sets = new ArrayList<long[]>();
+        if (pattern.flags() != 0) {
+            // Flags like CASE_INSENSITIVE change what the characters match
+            return new PatternFilter(pattern, new long[0]);
+        }
+        try {
+            var scanner = new Scanner(pattern.pattern());
+            scanner.sequence(sets);
+            if (scanner.pos != scanner.regex.length()) {
+                sets.clear();
+            }
+        } catch (Unsupported e) {
+            sets.clear();
+        }
+        var required = new long[2 * sets.size()];
+        for (int i = 0; i < sets.size(); i++) {
+            required[2 * i] = sets.get(i)[0];
+            required[2 * i + 1] = sets.get(i)[1];
+        }
+        return new PatternFilter(pattern, required);
+    }
+
+
+    /** Thrown when the regular expression uses a construct the scan does not handle. */
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Scans a regular expression, collecting the character sets of the
+     * elements every match contains. A set is null for an element that
+     * matches a character the scan cannot bound, like '.'.
+     */
+    private static class Scanner {
+        final String regex;
+        int pos = 0;
+
+        Scanner(String regex) {
+            this.regex = regex;
+        }
+
+        /**
+         * Scans a sequence up to the end or to an unmatched ')'. If the
+         * sequence contains an alternation, no element of it is required.
+         */
+        void sequence(List<long[]> sets) {
+            var found = new ArrayList<long[]>();
+            var alternation = false;
+            while (pos < regex.length() && regex.charAt(pos) != ')') {
+                if (regex.charAt(pos) == '|') {
+                    alternation = true;
+                    pos++;
+                    continue;
+                }
+                var elementSets = new ArrayList<long[]>();
+                element(elementSets);
+                if (quantifier()) {
+                    found.addAll(elementSets);
+                }
+            }
+            if (!alternation) {
+                sets.addAll(found);
+            }
+        }
+
+        /** Scans one element, adding the sets it requires if it occurs at least once. */
+        private void element(List<long[]> sets) {
+            var c = regex.charAt(pos++);
+            switch (c) {
+                case '(' -> {
+                    if (pos < regex.length() && regex.charAt(pos) == '?') {
+                        throw new Unsupported();
+                    }
+                    sequence(sets);
+                    expect(')');
+                }
+                case '[' -> add(sets, characterClass());
+                case '\\' -> add(sets, escape(false));
+                case '^', '$' -> {
+                    // Anchors match no character
+                }
+                case '.' -> {
+                    // Any character
+                }
+                case '*', '+', '?', '{', ')' -> throw new Unsupported();
+                default -> add(sets, single(c));
+            }
+        }
+
+        /**
+         * Scans the quantifier after an element, if any, and returns true if
+         * the element must occur at least once.
+         */
+        private boolean quantifier() {
+            if (pos == regex.length()) {
+                return true;
+            }
+            boolean required;
+            switch (regex.charAt(pos)) {
+                case '*', '?' -> {
+                    pos++;
+                    required = false;
+                }
+                case '+' -> {
+                    pos++;
+                    required = true;
+                }
+                case '{' -> {
+                    var end = regex.indexOf('}', pos);
+                    if (end < 0) {
+                        throw new Unsupported();
+                    }
+                    var bounds = regex.substring(pos + 1, end).split(",", -1);
+                    try {
+                        required = Integer.parseInt(bounds[0].trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        throw new Unsupported();
+                    }
+                    pos = end + 1;
+                }
+                default -> {
+                    return true;
+                }
+            }
+            // Lazy and possessive quantifiers
+            if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+                pos++;
+            }
+            return required;
+        }
+
+        /** Scans a character class after its '['; null if it is negated or cannot be bounded. */
+        private long[] characterClass() {
+            var set = new long[2];
+            var bounded = true;
+            if (pos < regex.length() && regex.charAt(pos) == '^') {
+                bounded = false;
+                pos++;
+            }
+            var first = true;
+            while (pos < regex.length() && (regex.charAt(pos) != ']' || first)) {
+                first = false;
+                var c = regex.charAt(pos++);
+                long[] member;
+                int from = -1;
+                if (c == '[' || (c == '&' && pos < regex.length() && regex.charAt(pos) == '&')) {
+                    throw new Unsupported();
+                } else if (c == '\\') {
+                    var escaped = pos < regex.length() ? regex.charAt(pos) : 0;
+                    member = escape(true);
+                    if (!Character.isLetterOrDigit(escaped)) {
+                        from = escaped;
+                    }
+                } else {
+                    member = single(c);
+                    from = c;
+                }
+                if (from >= 0 && pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                    // A range
+                    pos++;
+                    var to = regex.charAt(pos++);
+                    if (to == '\\') {
+                        var escaped = pos < regex.length() ? regex.charAt(pos++) : 0;
+                        if (Character.isLetterOrDigit(escaped)) {
+                            throw new Unsupported();
+                        }
+                        to = escaped;
+                    } else if (to == '[') {
+                        throw new Unsupported();
+                    }
+                    member = range(from, to);
+                }
+                if (member == null) {
+                    bounded = false;
+                } else {
+                    set[0] |= member[0];
+                    set[1] |= member[1];
+                }
+            }
+            expect(']');
+            return bounded ? set : null;
+        }
+
+        /**
+         * Scans an escape after its backslash. Returns the set of characters
+         * it matches, or null for an anchor or a set that cannot be bounded.
+         */
+        private long[] escape(boolean inClass) {
+            if (pos == regex.length()) {
+                throw new Unsupported();
+            }
+            var c = regex.charAt(pos++);
+            if (!Character.isLetterOrDigit(c)) {
+                return single(c);
+            }
+            return switch (c) {
+                case 'd' -> range('0', '9');
+                case 'w' -> union(union(range('a', 'z'), range('A', 'Z')), union(range('0', '9'), single('_')));
+                case 's' -> union(single(' '), range('\t', '\r'));
+                case 't' -> single('\t');
+                case 'n' -> single('\n');
+                case 'r' -> single('\r');
+                case 'f' -> single('\f');
+                case 'D', 'W', 'S' -> null;
+                case 'b', 'B', 'A', 'z', 'Z', 'G' -> {
+                    if (inClass) {
+                        throw new Unsupported();
+                    }
+                    yield null;
+                }
+                default -> throw new Unsupported();
+            };
+        }
+
+        private void expect(char c) {
+            if (pos == regex.length() || regex.charAt(pos) != c) {
+                throw new Unsupported();
+            }
+            pos++;
+        }
+
+        private static void add(List<long[]> sets, long[] set) {
+            if (set != null) {
+                sets.add(set);
+            }
+        }
+
+        /** The set holding only c, or null if c is not ASCII. */
+        private static long[] single(int c) {
+            return range(c, c);
+        }
+
+        /** The set of the characters from..to, or null if it goes beyond ASCII. */
+        private static long[] range(int from, int to) {
+            if (to >= 128 || from > to) {
+                return null;
+            }
+            var set = new long[2];
+            for (int c = from; c <= to; c++) {
+                set[c >> 6] |= 1L << (c & 63);
+            }
+            return set;
+        }
+
+        private static long[] union(long[] a, long[] b) {
+            return new long[]{a[0] | b[0], a[1] | b[1]};
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package ir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A dictionary file addressed by a minimal perfect hash function, so every
+ * lookup reads exactly one slot.
+ * <p>
+ * The hash function is built with the CHD algorithm (compress, hash and
+ * displace) when the index is written. Every term is hashed to one of about
+ * n / {@link #BUCKET_SIZE} buckets and to a value g. The buckets are placed
+ * largest first: for every bucket, the smallest displacement d is searched
+ * for which all its terms get free slots hash(g, d) mod n. The n slots are
+ * then exactly filled, one per term, and the hash function is given by the
+ * displacement of every bucket.
+ * <p>
+ * The file holds a header, the displacement of every bucket, the n slots
+ * of {@link #SLOT_SIZE} bytes, and the UTF-8 bytes of the terms in slot
+ * order. A slot holds a fingerprint of its term, where the bytes of the term
+ * start and how many there are, the data pointer and size, and the two score
+ * upper bounds. A term that is not in the dictionary is hashed to the slot of
+ * some other term, and is rejected because the 32-bit fingerprints differ.
+ * Only when they are equal, which is the case for every term that is in the
+ * dictionary, are the bytes of the term read and compared.
+ * <p>
+ * The displacements are read into memory when the dictionary is opened, so a
+ * lookup hashes the term and reads its slot, and then its term if the
+ * fingerprint matches.
+ */
+public final class PerfectHashDictionary {
+
+    /** The first bytes of a perfect hash dictionary file, "MPH" and a version. */
+    public static final int MAGIC = 0x4D504802;
+
+    /** Average number of terms per bucket. */
+    public static final int BUCKET_SIZE = 3;
+
+    /** fingerprint, term offset and length, data pointer, data size, two bounds */
+    public static final int SLOT_SIZE = 3 * Integer.BYTES + Long.BYTES + Integer.BYTES + 2 * Float.BYTES;
+
+    /** magic, term count, bucket count, seed */
+    static final int HEADER_SIZE = 3 * Integer.BYTES + Long.BYTES;
+
+    /** Displacements tried for one bucket before the build starts over with another seed. */
+    private static final long MAX_TRIES = 1L << 24;
+
+    private final int termCount;
+    private final long seed;
+    private final int[] displacements;
+    private final long slotsStart;
+    private final long termsStart;
+
+    private PerfectHashDictionary(int termCount, long seed, int[] displacements) {
+        this.termCount = termCount;
+        this.seed = seed;
+        this.displacements = displacements;
+        slotsStart = HEADER_SIZE + (long) Integer.BYTES * displacements.length;
+        termsStart = slotsStart + (long) SLOT_SIZE * termCount;
+    }
+
+    /** Reads the header and the displacements of a dictionary file. */
+    public static PerfectHashDictionary read(FileChannel channel) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        PersistentHashedIndex.readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a perfect hash dictionary");
+        }
+        var termCount = header.getInt(Integer.BYTES);
+        var bucketCount = header.getInt(2 * Integer.BYTES);
+        var seed = header.getLong(3 * Integer.BYTES);
+        var buf = ByteBuffer.allocate(Integer.BYTES * bucketCount);
+        PersistentHashedIndex.readFully(channel, buf, HEADER_SIZE);
+        var displacements = new int[bucketCount];
+        buf.flip().asIntBuffer().get(displacements);
+        return new PerfectHashDictionary(termCount, seed, displacements);
+    }
+
+    /** Number of terms in the dictionary. */
+    public int size() {
+        return termCount;
+    }
+
+
+    /**
+     * Returns the entry of the token, or null if it is not in the dictionary,
+     * reading its slot from the mapped file if there is one and from the
+     * channel otherwise.
+     */
+    public PersistentHashedIndex.Entry find(String token, FileChannel channel, MappedFile mapped) throws IOException {
+        if (termCount == 0) {
+            return null;
+        }
+        var h = hash(token, seed);
+        var g = mix(h ^ 0x9E3779B97F4A7C15L);
+        var d = displacements[(int) Long.remainderUnsigned(h, displacements.length)];
+        var ptr = slotsStart + (long) SLOT_SIZE * slot(g, d, termCount);
+        ByteBuffer buf;
+        if (mapped != null) {
+            buf = mapped.slice(ptr, SLOT_SIZE);
+        } else {
+            buf = ByteBuffer.allocate(SLOT_SIZE);
+            PersistentHashedIndex.readFully(channel, buf, ptr);
+            buf.flip();
+        }
+        if (buf.getInt() != fingerprint(g)) {
+            return null;
+        }
+        var termOffset = buf.getInt();
+        var term = new byte[buf.getInt()];
+        var bytes = token.getBytes(StandardCharsets.UTF_8);
+        if (term.length != bytes.length) {
+            return null;
+        }
+        if (mapped != null) {
+            mapped.get(termsStart + termOffset, term, 0, term.length);
+        } else {
+            PersistentHashedIndex.readFully(channel, ByteBuffer.wrap(term), termsStart + termOffset);
+        }
+        if (!Arrays.equals(term, bytes)) {
+            return null;
+        }
+        return new PersistentHashedIndex.Entry(token, buf.getLong(), buf.getInt(), buf.getFloat(), buf.getFloat());
+    }
+
+
+    /**
+     * Reads all entries of the dictionary, in slot order.
+     *
+     * @throws IOException If the file does not hold the terms.
+     */
+    public List<PersistentHashedIndex.Entry> entries(FileChannel channel) throws IOException {
+        var size = channel.size() - slotsStart;
+        if (size < (long) SLOT_SIZE * termCount) {
+            throw new IOException("The dictionary does not hold its terms");
+        }
+        var buf = ByteBuffer.allocate((int) size);
+        PersistentHashedIndex.readFully(channel, buf, slotsStart);
+        buf.flip();
+        var termsStart = SLOT_SIZE * termCount;
+        var entries = new ArrayList<PersistentHashedIndex.Entry>(termCount);
+        for (int i = 0; i < termCount; i++) {
+            buf.getInt();
+            var termOffset = buf.getInt();
+            var termLength = buf.getInt();
+            var term = new String(buf.array(), termsStart + termOffset, termLength, StandardCharsets.UTF_8);
+            entries.add(new PersistentHashedIndex.Entry(term, buf.getLong(), buf.getInt(), buf.getFloat(), buf.getFloat()));
+        }
+        return entries;
+    }
+
+
+    /**
+     * Encodes the entries, which may come in any order, as a dictionary file.
+     */
+    public static byte[] encode(List<PersistentHashedIndex.Entry> entries) {
+        var n = entries.size();
+        var bucketCount = Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        var hashes = new long[n];
+        var gs = new long[n];
+        int[] displacements = null;
+        int[] slotOf = null;
+        for (long seed = 0x2477L; displacements == null; seed++) {
+            for (int i = 0; i < n; i++) {
+                hashes[i] = hash(entries.get(i).token, seed);
+                gs[i] = mix(hashes[i] ^ 0x9E3779B97F4A7C15L);
+            }
+            slotOf = new int[n];
+            displacements = place(hashes, gs, bucketCount, slotOf);
+            if (displacements != null) {
+                var termOf = new int[n];
+                var terms = new PostingsCodec.Encoder(16 * n);
+                var termOffsets = new int[n];
+                var termLengths = new int[n];
+                for (int i = 0; i < n; i++) {
+                    termOf[slotOf[i]] = i;
+                }
+                for (var i : termOf) {
+                    var bytes = entries.get(i).token.getBytes(StandardCharsets.UTF_8);
+                    termOffsets[i] = terms.length();
+                    termLengths[i] = bytes.length;
+                    terms.write(bytes, 0, bytes.length);
+                }
+                var buf = ByteBuffer.allocate(HEADER_SIZE + Integer.BYTES * bucketCount + SLOT_SIZE * n + terms.length());
+                buf.putInt(MAGIC).putInt(n).putInt(bucketCount).putLong(seed);
+                for (var d : displacements) {
+                    buf.putInt(d);
+                }
+                var slotsStart = buf.position();
+                for (int i = 0; i < n; i++) {
+                    var e = entries.get(i);
+                    buf.position(slotsStart + SLOT_SIZE * slotOf[i]);
+                    buf.putInt(fingerprint(gs[i])).putInt(termOffsets[i]).putInt(termLengths[i]).putLong(e.dataPtr).putInt(e.dataSize).putFloat(e.lengthBound).putFloat(e.normBound);
+                }
+                buf.position(slotsStart + SLOT_SIZE * n).put(terms.toByteArray());
+                return buf.array();
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Finds a displacement for every bucket, largest bucket first, and the
+     * slot of every term.
+     *
+     * @return The displacements, or null if some bucket could not be placed.
+     */
+    private static int[] place(long[] hashes, long[] gs, int bucketCount, int[] slotOf) {
+        var n = hashes.length;
+        // Group the terms by bucket
+        var starts = new int[bucketCount + 1];
+        for (var h : hashes) {
+            starts[(int) Long.remainderUnsigned(h, bucketCount) + 1]++;
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            starts[b + 1] += starts[b];
+        }
+        var members = new int[n];
+        var fill = Arrays.copyOf(starts, bucketCount);
+        for (int i = 0; i < n; i++) {
+            members[fill[(int) Long.remainderUnsigned(hashes[i], bucketCount)]++] = i;
+        }
+        var order = new Integer[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> (starts[b + 1] - starts[b]) - (starts[a + 1] - starts[a]));
+
+        var displacements = new int[bucketCount];
+        var taken = new boolean[n];
+        var slots = new int[64];
+        for (var b : order) {
+            var size = starts[b + 1] - starts[b];
+            if (size == 0) {
+                break;
+            }
+            if (slots.length < size) {
+                slots = new int[size];
+            }
+            var placed = false;
+            for (long d = 0; d < MAX_TRIES && d <= Integer.MAX_VALUE && !placed; d++) {
+                placed = true;
+                for (int k = 0; k < size && placed; k++) {
+                    slots[k] = slot(gs[members[starts[b] + k]], (int) d, n);
+                    if (taken[slots[k]]) {
+                        placed = false;
+                    }
+                    for (int j = 0; j < k && placed; j++) {
+                        if (slots[j] == slots[k]) {
+                            placed = false;
+                        }
+                    }
+                }
+                if (placed) {
+                    displacements[b] = (int) d;
+                    for (int k = 0; k < size; k++) {
+                        taken[slots[k]] = true;
+                        slotOf[members[starts[b] + k]] = slots[k];
+                    }
+                }
+            }
+            if (!placed) {
+                return null;
+            }
+        }
+        return displacements;
+    }
+
+    /**
+     * The slot of a term with the given displacement. Every displacement
+     * gives an independent slot, so a bucket is as likely to fit with the
+     * next displacement as with the previous one.
+     */
+    private static int slot(long g, int d, int n) {
+        return (int) Long.remainderUnsigned(mix(g + d * 0x9E3779B97F4A7C15L), n);
+    }
+
+    private static int fingerprint(long g) {
+        return (int) mix(g + 0xC2B2AE3D27D4EB4FL);
+    }
+
+    /** A 64-bit hash of the characters of s. */
+    static long hash(String s, long seed) {
+        var h = seed ^ 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h ^ s.length());
+    }
+
+    /** The finalizer of MurmurHash3, which makes every output bit depend on every input bit. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+}
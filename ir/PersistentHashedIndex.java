@@ -8,7 +8,16 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /*
@@ -21,6 +30,28 @@ import java.util.*;
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
  *   to disk.
+ *
+ *   Postings lists are written in the format given by 'dataFormat' (see
+ *   PostingsCodec); lists in any supported format can be read back.
+ *
+ *   The dictionary is written in the layout given by 'dictionaryFormat':
+ *   a hash table of fixed-size slots, the sorted, front-coded terms of
+ *   FrontCodedDictionary, which is far smaller, keeps long and non-ASCII
+ *   terms intact and supports prefix scans, or the slots of
+ *   PerfectHashDictionary, which finds every term with a single read.
+ *   Any of the layouts can be read back.
+ *
+ *   Searches read from a snapshot of the index files with positional reads,
+ *   so any number of them can run at once. A new index is written to
+ *   separate files and then published as a new snapshot, so searches never
+ *   wait for indexing; they see the last published index.
+ *
+ *   An index can be updated without being rebuilt (see update). The added
+ *   documents are written to a delta segment, which is kept in memory, and
+ *   the deleted ones are marked in a tombstone bitmap. Searches join the
+ *   postings of the index files and the deltas and leave out the deleted
+ *   documents, until a background merge rewrites the index files with
+ *   the deltas and without the deleted documents.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -39,6 +70,15 @@ public class PersistentHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
+    /** The file name of the docIDs deleted since the last merge */
+    public static final String TOMBSTONES_FNAME = "tombstones";
+
+    /** The file name prefix of the delta segments written by updates */
+    public static final String DELTA_FNAME = "delta";
+
+    /** The k-gram index file name */
+    public static final String KGRAMS_FNAME = "kgrams";
+
     /** The dictionary hash table on disk can fit this many entries. */
     public static final long TABLESIZE = 3500000L;
 
@@ -46,23 +86,97 @@ public class PersistentHashedIndex implements Index {
     public static final int MAX_WORD_LENGTH = 60;
 
     /** The length of the longest word in the dictionary. */
-    public static final int ENTRYSIZE = Long.BYTES + Integer.BYTES + Integer.BYTES + MAX_WORD_LENGTH;
+    public static final int ENTRYSIZE = Long.BYTES + Integer.BYTES + Integer.BYTES + MAX_WORD_LENGTH + 2 * Float.BYTES;
+
+    /** The offset of the score upper bounds within a dictionary entry. */
+    static final int BOUNDS_OFFSET = Long.BYTES + Integer.BYTES + Integer.BYTES + MAX_WORD_LENGTH;
+
+    /** The suffix of the index files while they are being written. */
+    public static final String NEW_SUFFIX = ".new";
 
-    /** The dictionary hash table is stored in this file. */
+    /**
+     * Held while new index files are written, from {@link #clearIndexFiles}
+     * to {@link #publishIndexFiles}, so that a merge in the background and
+     * writing the whole index never use the fields below at the same time.
+     * It is taken before the lock of the index, never after.
+     */
+    final Object writeLock = new Object();
+
+    /** The dictionary hash table being written, or null when no index is being written. */
     RandomAccessFile dictionaryFile;
 
-    /** The data (the PostingsLists) are stored in this file. */
+    /** The data (the PostingsLists) being written, or null when no index is being written. */
     RandomAccessFile dataFile;
 
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
-    /** The cache as a main-memory hash map. */
+    /** The published index files that searches read from. */
+    private volatile Snapshot snapshot;
+
+    /** Whether snapshots map the index files into memory. */
+    private boolean memoryMapped = false;
+
+    /** The format used when writing postings lists to the data file. */
+    PostingsFormat dataFormat = PostingsFormat.BINARY;
+
+    /** The layout used when writing the dictionary file. */
+    DictionaryFormat dictionaryFormat = DictionaryFormat.HASHED;
+
+    /** The entries of a front-coded or perfect hash dictionary being written, which is built when it is published. */
+    private final List<Entry> pendingEntries = new ArrayList<>();
+
+    /** The main-memory index that is built up before it is written to disk. */
     Map<String, PostingsList> index = new HashMap<>();
 
+    /** The k-gram index of the terms, which is written with the index files if it is set. */
+    KGramIndex kgIndex = null;
+
+    /** Default size of the postings cache, in bytes. */
+    public static final long DEFAULT_CACHE_BYTES = 128L << 20;
+
+    /** The size of the postings cache of every snapshot, in bytes. */
+    private long cacheBytes = DEFAULT_CACHE_BYTES;
+
+    /** The delta segments written since the last merge, oldest first. The list is replaced, never modified. */
+    private volatile List<Delta> deltas = List.of();
+
+    /** The docIDs deleted since the last merge. The set is replaced, never modified. */
+    private volatile BitSet deleted = new BitSet();
+
+    /** The number of the next delta segment. */
+    private int deltaCount = 0;
+
+    /** The docID of the first document added by the next update. */
+    private int nextDocID = 0;
+
+    /** The time the indexed files were read, in milliseconds since the epoch. */
+    private long indexedAt;
+
+    /** The time this index was opened, which is when the files of a new index are read. */
+    private final long openedAt = System.currentTimeMillis();
+
+    /** Merges the deltas into the index files in the background, one merge at a time. */
+    private final ExecutorService merger =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().name("index-merge").daemon().factory());
+
 
     // ===================================================================
 
+    /**
+     * A delta segment, the postings of the documents added by one update.
+     */
+    static final class Delta {
+        final int number;
+        final Map<String, PostingsList> postings;
+
+        Delta(int number, Map<String, PostingsList> postings) {
+            this.number = number;
+            this.postings = postings;
+        }
+    }
+
+
     /**
      * A helper class representing one entry in the dictionary hashtable.
      */
@@ -70,11 +184,107 @@ public class PersistentHashedIndex implements Index {
         String token;
         long dataPtr;
         int dataSize;
+        /** The largest tf / document length over the postings of the token. */
+        float lengthBound;
+        /** The largest tf / document norm over the postings, or infinity if unknown. */
+        float normBound;
 
-        Entry(String token, long dataPtr, int dataSize) {
+        Entry(String token, long dataPtr, int dataSize, float lengthBound, float normBound) {
             this.token = token;
             this.dataPtr = dataPtr;
             this.dataSize = dataSize;
+            this.lengthBound = lengthBound;
+            this.normBound = normBound;
+        }
+    }
+
+
+    /**
+     * The published dictionary and data files, read with positional reads
+     * or through mappings, and the postings lists read from them.
+     * <p>
+     * A snapshot also holds the deltas and deletions of the updates since
+     * the files were written.
+     * <p>
+     * A snapshot counts the searches using it, plus one while it is the
+     * published snapshot. Once it has been replaced and the last search
+     * has released it, its files are closed.
+     */
+    static class Snapshot {
+        final FileChannel dictionary;
+        final FileChannel data;
+        /** The mapped files, or null if reads go through the channels. */
+        final MappedFile mappedDictionary;
+        final MappedFile mappedData;
+        /** The dictionary, if it is front-coded; it is then read into memory. */
+        final FrontCodedDictionary frontCoded;
+        /** The hash function of the dictionary, if it is a perfect hash dictionary. */
+        final PerfectHashDictionary perfectHash;
+        final PostingsCache cache;
+        final List<Delta> deltas;
+        final BitSet deleted;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Snapshot(Path dictionary, Path data, boolean memoryMapped, long cacheBytes, List<Delta> deltas, BitSet deleted) throws IOException {
+            this.dictionary = FileChannel.open(dictionary, StandardOpenOption.READ);
+            this.data = FileChannel.open(data, StandardOpenOption.READ);
+            var magic = magic(this.dictionary);
+            frontCoded = magic == FrontCodedDictionary.MAGIC ? FrontCodedDictionary.read(dictionary) : null;
+            perfectHash = magic == PerfectHashDictionary.MAGIC ? PerfectHashDictionary.read(this.dictionary) : null;
+            mappedDictionary = memoryMapped && frontCoded == null ? new MappedFile(dictionary.toString()) : null;
+            mappedData = memoryMapped ? new MappedFile(data.toString()) : null;
+            cache = new PostingsCache(cacheBytes);
+            this.deltas = deltas;
+            this.deleted = deleted;
+        }
+
+        /** Whether the index has been updated since the files were written. */
+        boolean updated() {
+            return !deltas.isEmpty() || !deleted.isEmpty();
+        }
+
+        /** The layout of the dictionary file. */
+        DictionaryFormat dictionaryFormat() {
+            if (frontCoded != null) {
+                return DictionaryFormat.FRONT_CODED;
+            } else if (perfectHash != null) {
+                return DictionaryFormat.PERFECT_HASHED;
+            }
+            return DictionaryFormat.HASHED;
+        }
+
+        /** The first four bytes of a file, which tell the dictionary formats apart, or 0. */
+        private static int magic(FileChannel file) throws IOException {
+            if (file.size() < Integer.BYTES) {
+                return 0;
+            }
+            var buf = ByteBuffer.allocate(Integer.BYTES);
+            readFully(file, buf, 0);
+            return buf.getInt(0);
+        }
+
+        /** Registers a search, unless the snapshot has already been closed. */
+        boolean acquire() {
+            while (true) {
+                var count = references.get();
+                if (count == 0) {
+                    return false;
+                } else if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /** Unregisters a search, or the publication, and closes the files after the last one. */
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    dictionary.close();
+                    data.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
@@ -88,12 +298,19 @@ public class PersistentHashedIndex implements Index {
      */
     public PersistentHashedIndex() {
         try {
-            dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw");
-            dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw");
+            for (var name : new String[]{DICTIONARY_FNAME, DATA_FNAME}) {
+                var file = Path.of(INDEXDIR, name);
+                if (!Files.exists(file)) {
+                    Files.createFile(file);
+                }
+            }
+            readUpdates();
+            snapshot = openSnapshot();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        indexedAt = openedAt;
         try {
             readDocInfo();
         } catch (FileNotFoundException e) {
@@ -107,10 +324,9 @@ public class PersistentHashedIndex implements Index {
      *
      * @return The number of bytes written.
      */
-    int writeData(RandomAccessFile file, String dataString, long ptr) {
+    int writeData(RandomAccessFile file, byte[] data, long ptr) {
         try {
             file.seek(ptr);
-            byte[] data = dataString.getBytes();
             file.write(data);
             return data.length;
         } catch (IOException e) {
@@ -121,20 +337,33 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     * Reads data from the data file
+     * Reads data from the data file. The read does not move the position
+     * of the channel, so reads may run concurrently.
      */
-    String readData(RandomAccessFile file, long ptr, int size) {
+    byte[] readData(FileChannel file, long ptr, int size) {
         try {
-            file.seek(ptr);
             byte[] data = new byte[size];
-            file.readFully(data);
-            return new String(data);
+            readFully(file, ByteBuffer.wrap(data), ptr);
+            return data;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Fills the buffer with the bytes of the channel starting at <code>ptr</code>.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buf, long ptr) throws IOException {
+        while (buf.hasRemaining()) {
+            var n = channel.read(buf, ptr);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            ptr += n;
+        }
+    }
+
 
     // ==================================================================
     //
@@ -158,31 +387,36 @@ public class PersistentHashedIndex implements Index {
                 byte[] padding = new byte[MAX_WORD_LENGTH - length];
                 dict.write(padding);
             }
+            dict.writeFloat(entry.lengthBound);
+            dict.writeFloat(entry.normBound);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Reads an entry from the dictionary file.
+     * Reads an entry from the dictionary file with a positional read.
      *
      * @param ptr The place in the dictionary file where to start reading.
      */
-    Entry readEntry(RandomAccessFile dict, long ptr) {
+    Entry readEntry(FileChannel dict, long ptr) {
         try {
-            if (dict.length() <= ptr) {
+            if (dict.size() <= ptr) {
                 return null;
             }
-            dict.seek(ptr);
-            var dataPtr = dict.readLong();
-            var dataSize = dict.readInt();
-            var length = dict.readInt();
+            var buf = ByteBuffer.allocate(ENTRYSIZE);
+            readFully(dict, buf, ptr);
+            var dataPtr = buf.getLong(0);
+            var dataSize = buf.getInt(Long.BYTES);
+            var length = buf.getInt(Long.BYTES + Integer.BYTES);
             if (length == 0) {
                 return null;
             } else {
                 var data = new byte[length];
-                dict.readFully(data);
-                return new Entry(new String(data), dataPtr, dataSize);
+                buf.get(Long.BYTES + Integer.BYTES + Integer.BYTES, data);
+                var lengthBound = buf.getFloat(BOUNDS_OFFSET);
+                var normBound = buf.getFloat(BOUNDS_OFFSET + Float.BYTES);
+                return new Entry(new String(data), dataPtr, dataSize, lengthBound, normBound);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -191,6 +425,218 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     * Maps the dictionary and data files into memory. Subsequent lookups read
+     * from the mapped buffers instead of the files, and so do the lookups in
+     * indexes published later.
+     */
+    public void mapFiles() {
+        memoryMapped = true;
+        try {
+            publish(openSnapshot());
+        } catch (IOException e) {
+            e.printStackTrace();
+            memoryMapped = false;
+        }
+    }
+
+    /**
+     * Sets the size of the postings cache. The cache starts out empty.
+     */
+    public void setCacheBytes(long bytes) {
+        cacheBytes = bytes;
+        try {
+            publish(openSnapshot());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens the published index files.
+     */
+    final Snapshot openSnapshot() throws IOException {
+        return new Snapshot(Path.of(INDEXDIR, DICTIONARY_FNAME), Path.of(INDEXDIR, DATA_FNAME), memoryMapped, cacheBytes,
+                deltas, deleted);
+    }
+
+    /**
+     * Makes new searches use the given snapshot. Searches using the
+     * previous one can still finish with it.
+     */
+    synchronized void publish(Snapshot next) {
+        var previous = snapshot;
+        snapshot = next;
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Returns the published snapshot, which must be released after use.
+     */
+    Snapshot acquireSnapshot() {
+        while (true) {
+            var current = snapshot;
+            if (current.acquire()) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the mapped dictionary entry at <code>ptr</code> holds the
+     * token, without creating a String for the stored token.
+     *
+     * @return 1 if it does, 0 if it holds another token and -1 if the slot is empty.
+     */
+    private int matchEntry(MappedFile dict, long ptr, String token) {
+        if (dict.length() <= ptr) {
+            return -1;
+        }
+        var length = dict.getInt(ptr + Long.BYTES + Integer.BYTES);
+        if (length == 0) {
+            return -1;
+        }
+        if (length != token.length()) {
+            return 0;
+        }
+        var start = ptr + Long.BYTES + Integer.BYTES + Integer.BYTES;
+        for (int i = 0; i < length; i++) {
+            // The dictionary stores the low byte of every char, see writeEntry
+            if (dict.getByte(start + i) != (byte) token.charAt(i)) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Looks up the token in the dictionary of a snapshot.
+     *
+     * @return The dictionary entry of the token, or null if it is not in the index.
+     */
+    Entry findEntry(Snapshot s, String token) {
+        if (s.frontCoded != null) {
+            return s.frontCoded.find(token);
+        } else if (s.perfectHash != null) {
+            try {
+                return s.perfectHash.find(token, s.dictionary, s.mappedDictionary);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        var dicIndex = Math.abs(token.hashCode()) % TABLESIZE;
+        var mappedDictionary = s.mappedDictionary;
+        if (mappedDictionary != null) {
+            while (true) {
+                var dicPtr = dicIndex * ENTRYSIZE;
+                var match = matchEntry(mappedDictionary, dicPtr, token);
+                if (match < 0) {
+                    return null;
+                } else if (match > 0) {
+                    return new Entry(token, mappedDictionary.getLong(dicPtr), mappedDictionary.getInt(dicPtr + Long.BYTES),
+                            Float.intBitsToFloat(mappedDictionary.getInt(dicPtr + BOUNDS_OFFSET)),
+                            Float.intBitsToFloat(mappedDictionary.getInt(dicPtr + BOUNDS_OFFSET + Float.BYTES)));
+                }
+                dicIndex = (dicIndex + 1) % TABLESIZE;
+            }
+        }
+        var e = readEntry(s.dictionary, dicIndex * ENTRYSIZE);
+        while (e != null) {
+            if (e.token.equals(token)) {
+                return e;
+            }
+            dicIndex = (dicIndex + 1) % TABLESIZE;
+            e = readEntry(s.dictionary, dicIndex * ENTRYSIZE);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the encoded postings list a dictionary entry of a snapshot
+     * points to. The buffer stays valid after the snapshot is closed.
+     */
+    ByteBuffer readPostingsData(Snapshot s, Entry e) {
+        if (s.mappedData != null) {
+            return s.mappedData.slice(e.dataPtr, e.dataSize);
+        }
+        return ByteBuffer.wrap(readData(s.data, e.dataPtr, e.dataSize));
+    }
+
+    /**
+     * Reads and decodes the postings list a dictionary entry of a snapshot points to.
+     */
+    PostingsList readPostings(Snapshot s, Entry e) {
+        return PostingsCodec.decode(readPostingsData(s, e));
+    }
+
+    /**
+     * Returns the postings of a token in a snapshot, with the postings of
+     * the deltas appended and without the deleted documents.
+     *
+     * @param e The dictionary entry of the token, or null if it is not in the index files.
+     * @return The postings, or null if there are none.
+     */
+    PostingsList combinePostings(Snapshot s, String token, Entry e, List<Delta> deltas, BitSet deleted) {
+        var list = new PostingsList();
+        if (e != null) {
+            list.append(readPostings(s, e), deleted);
+        }
+        for (var delta : deltas) {
+            var postings = delta.postings.get(token);
+            if (postings != null) {
+                list.append(postings, deleted);
+            }
+        }
+        return list.size() == 0 ? null : list;
+    }
+
+    /**
+     * Reads the encoded postings of a token from a snapshot, or returns null
+     * if it is not in the index. If the index has been updated, the joined
+     * postings are encoded again, so they are only joined once.
+     */
+    private ByteBuffer loadPostings(Snapshot s, String token) {
+        var e = findEntry(s, token);
+        if (s.updated()) {
+            var list = combinePostings(s, token, e, s.deltas, s.deleted);
+            return list == null ? null : ByteBuffer.wrap(PostingsCodec.encode(list, PostingsFormat.BINARY));
+        }
+        return e == null ? null : readPostingsData(s, e);
+    }
+
+    /**
+     * Returns all entries of the dictionary of a snapshot, in no particular order.
+     */
+    List<Entry> readEntries(Snapshot s) throws IOException {
+        if (s.frontCoded != null) {
+            return s.frontCoded.prefix("");
+        } else if (s.perfectHash != null) {
+            return s.perfectHash.entries(s.dictionary);
+        }
+        // Scan the hash table, many slots at a time
+        var entries = new ArrayList<Entry>();
+        var size = s.dictionary.size();
+        var buf = ByteBuffer.allocate(ENTRYSIZE * 4096);
+        for (long ptr = 0; ptr < size; ptr += buf.capacity()) {
+            buf.clear().limit((int) Math.min(buf.capacity(), size - ptr));
+            readFully(s.dictionary, buf, ptr);
+            for (int at = 0; at + ENTRYSIZE <= buf.limit(); at += ENTRYSIZE) {
+                var length = buf.getInt(at + Long.BYTES + Integer.BYTES);
+                if (length > 0) {
+                    var token = new byte[length];
+                    buf.get(at + Long.BYTES + Integer.BYTES + Integer.BYTES, token);
+                    entries.add(new Entry(new String(token), buf.getLong(at), buf.getInt(at + Long.BYTES),
+                            buf.getFloat(at + BOUNDS_OFFSET), buf.getFloat(at + BOUNDS_OFFSET + Float.BYTES)));
+                }
+            }
+        }
+        return entries;
+    }
+
+
     // ==================================================================
 
     /**
@@ -198,14 +644,21 @@ public class PersistentHashedIndex implements Index {
      *
      * @throws IOException { exception_description }
      */
-    private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream(INDEXDIR + "/docInfo");
+    synchronized void writeDocInfo() throws IOException {
+        for (var docID : docNames.keySet()) {
+            nextDocID = Math.max(nextDocID, docID + 1);
+        }
+        FileOutputStream fout = new FileOutputStream(INDEXDIR + "/docInfo" + NEW_SUFFIX);
+        // The first line holds the next docID and the time the files were read
+        fout.write(("#;" + nextDocID + ";" + indexedAt + "\n").getBytes());
         for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
             Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
+            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + ";" + docNorms.getOrDefault(key, 0.0) + "\n";
             fout.write(docInfoEntry.getBytes());
         }
         fout.close();
+        Files.move(Path.of(INDEXDIR, DOCINFO_FNAME + NEW_SUFFIX), Path.of(INDEXDIR, DOCINFO_FNAME),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
 
@@ -218,12 +671,23 @@ public class PersistentHashedIndex implements Index {
     private void readDocInfo() throws IOException {
         File file = new File(INDEXDIR + "/docInfo");
         FileReader freader = new FileReader(file);
+        // Files written without the first line are as old as the file
+        indexedAt = file.lastModified();
         try (BufferedReader br = new BufferedReader(freader)) {
             String line;
             while ((line = br.readLine()) != null) {
                 String[] data = line.split(";");
+                if (line.startsWith("#")) {
+                    nextDocID = Integer.parseInt(data[1]);
+                    indexedAt = Long.parseLong(data[2]);
+                    continue;
+                }
+                nextDocID = Math.max(nextDocID, Integer.parseInt(data[0]) + 1);
                 docNames.put(Integer.parseInt(data[0]), data[1]);
                 docLengths.put(Integer.parseInt(data[0]), Integer.parseInt(data[2]));
+                if (data.length > 3) {
+                    docNorms.put(Integer.parseInt(data[0]), Double.parseDouble(data[3]));
+                }
             }
         }
         freader.close();
@@ -235,61 +699,231 @@ public class PersistentHashedIndex implements Index {
      */
     public void writeIndex() {
         int collisions = 0;
-        try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
-
-            // Write the dictionary and the postings list
-            for (var entry : index.entrySet()) {
-                var token = entry.getKey();
-                var postingsList = entry.getValue();
-                var dicIndex = Math.abs(token.hashCode()) % TABLESIZE;
-                var dicPtr = dicIndex * ENTRYSIZE;
-                var e = readEntry(dictionaryFile, dicPtr);
-                while (e != null) {
-                    collisions++;
-                    dicIndex = (dicIndex + 1) % TABLESIZE;
-                    dicPtr = dicIndex * ENTRYSIZE;
-                    e = readEntry(dictionaryFile, dicPtr);
+        synchronized (writeLock) {
+            try {
+                // Compute the document vector norms, and write them to a file
+                // together with the 'docNames' and 'docLengths' hash maps
+                var n = docNames.size();
+                var sumsOfSquares = TfIdf.newDocumentArray();
+                for (var list : index.values()) {
+                    TfIdf.addSquaredWeights(list.iterator(), n, sumsOfSquares);
+                }
+                var norms = TfIdf.storeNorms(sumsOfSquares, docNorms);
+                var lengths = TfIdf.documentLengths();
+                writeDocInfo();
+
+                // Write the dictionary and the postings list, with the score
+                // upper bounds of every term
+                clearIndexFiles();
+                var occupied = new boolean[(int) TABLESIZE];
+                // A front-coded dictionary has the terms in sorted order, and so
+                // is smallest when the data is written in that order too
+                var entries = dictionaryFormat == DictionaryFormat.FRONT_CODED ? new TreeMap<>(index).entrySet() : index.entrySet();
+                for (var entry : entries) {
+                    var list = entry.getValue();
+                    collisions += writeTerm(entry.getKey(), PostingsCodec.encode(list, dataFormat),
+                            TfIdf.maxTfRatio(list.iterator(), lengths), TfIdf.maxTfRatio(list.iterator(), norms), occupied);
                 }
-                var data = postingsList.toString();
-                writeEntry(dictionaryFile, new Entry(token, free, data.length()), dicPtr);
-                free += writeData(dataFile, data, free);
+                publishIndexFiles();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
         System.err.println(collisions + " collisions.");
     }
 
 
+    /**
+     * Creates empty dictionary and data files for a new index to be written
+     * to. They are only read from once {@link #publishIndexFiles} is called.
+     */
+    void clearIndexFiles() throws IOException {
+        dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME + NEW_SUFFIX, "rw");
+        dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME + NEW_SUFFIX, "rw");
+        dictionaryFile.setLength(0);
+        dataFile.setLength(0);
+        free = 0;
+        pendingEntries.clear();
+    }
+
+
+    /**
+     * Replaces the published index files by the ones written since
+     * {@link #clearIndexFiles}, and publishes a snapshot of them.
+     */
+    void publishIndexFiles() throws IOException {
+        switch (dictionaryFormat) {
+            case FRONT_CODED -> dictionaryFile.write(FrontCodedDictionary.encode(pendingEntries));
+            case PERFECT_HASHED -> dictionaryFile.write(PerfectHashDictionary.encode(pendingEntries));
+            case HASHED -> {
+            }
+        }
+        pendingEntries.clear();
+        dictionaryFile.close();
+        dataFile.close();
+        dictionaryFile = null;
+        dataFile = null;
+        for (var name : new String[]{DICTIONARY_FNAME, DATA_FNAME}) {
+            Files.move(Path.of(INDEXDIR, name + NEW_SUFFIX), Path.of(INDEXDIR, name),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        publish(openSnapshot());
+    }
+
+
+    /**
+     * Appends the postings data of a token to the data file, and writes its
+     * entry to the first free dictionary slot at or after its hash value.
+     * The entries of other dictionary formats are kept until it is published.
+     *
+     * @param lengthBound The largest tf / document length over the postings.
+     * @param normBound   The largest tf / document norm over the postings, or infinity if unknown.
+     * @param occupied The dictionary slots that have been written to so far.
+     * @return The number of collisions.
+     */
+    int writeTerm(String token, byte[] data, float lengthBound, float normBound, boolean[] occupied) {
+        if (dictionaryFormat != DictionaryFormat.HASHED) {
+            pendingEntries.add(new Entry(token, free, data.length, lengthBound, normBound));
+            free += writeData(dataFile, data, free);
+            return 0;
+        }
+        var collisions = 0;
+        var dicIndex = Math.abs(token.hashCode()) % TABLESIZE;
+        while (occupied[(int) dicIndex]) {
+            collisions++;
+            dicIndex = (dicIndex + 1) % TABLESIZE;
+        }
+        occupied[(int) dicIndex] = true;
+        writeEntry(dictionaryFile, new Entry(token, free, data.length, lengthBound, normBound), dicIndex * ENTRYSIZE);
+        free += writeData(dataFile, data, free);
+        return collisions;
+    }
+
+
     // ==================================================================
 
 
     /**
      * Returns the postings for a specific term, or null
-     * if the term is not in the index.
+     * if the term is not in the published index.
      */
     public PostingsList getPostings(String token) {
-        if (index.containsKey(token)) {
-            return index.get(token);
+        var s = acquireSnapshot();
+        try {
+            var data = s.cache.get(token, t -> loadPostings(s, t));
+            return data == null ? null : PostingsCodec.decode(data.duplicate());
+        } finally {
+            s.release();
         }
-        var dicIndex = Math.abs(token.hashCode()) % TABLESIZE;
-        var dicPtr = dicIndex * ENTRYSIZE;
-        PostingsList list = null;
-        var e = readEntry(dictionaryFile, dicPtr);
-        while (e != null) {
-            if (e.token.equals(token)) {
-                var data = readData(dataFile, e.dataPtr, e.dataSize);
-                list = PostingsList.fromString(data);
-                break;
+    }
+
+
+    /**
+     * Returns an iterator over the postings for a specific term, or null if the
+     * term is not in the published index. The encoded list is read through the
+     * postings cache, so a term searched for again is not read from the files,
+     * and it is not decoded up front, so skipping through it with advance
+     * stays cheap.
+     */
+    @Override
+    public PostingsIterator iterator(String token) {
+        var s = acquireSnapshot();
+        try {
+            var data = s.cache.get(token, t -> loadPostings(s, t));
+            return data == null ? null : PostingsCodec.iterator(data.duplicate());
+        } finally {
+            s.release();
+        }
+    }
+
+
+    /**
+     * Returns the number of documents containing the token, from the header
+     * of its encoded list. Without updates only the header is read; after
+     * updates the joined list is read through the postings cache.
+     */
+    @Override
+    public int docFrequency(String token) {
+        var s = acquireSnapshot();
+        try {
+            if (s.updated()) {
+                var data = s.cache.get(token, t -> loadPostings(s, t));
+                return data == null ? 0 : PostingsCodec.docFrequency(data);
             }
-            dicIndex = (dicIndex + 1) % TABLESIZE;
-            dicPtr = dicIndex * ENTRYSIZE;
-            e = readEntry(dictionaryFile, dicPtr);
+            var e = findEntry(s, token);
+            if (e == null) {
+                return 0;
+            }
+            if (s.mappedData == null) {
+                var header = ByteBuffer.wrap(readData(s.data, e.dataPtr, Math.min(e.dataSize, PostingsCodec.DOC_COUNT_BYTES)));
+                if (PostingsCodec.isBinary(header)) {
+                    return PostingsCodec.docFrequency(header);
+                }
+            }
+            return PostingsCodec.docFrequency(readPostingsData(s, e));
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * Returns the upper bound stored in the dictionary entry of the token.
+     * Deleted documents can only lower the bound, but added ones are not
+     * covered by it, so there is no bound for tokens in the deltas.
+     */
+    @Override
+    public double upperBound(String token, NormalizationType normType) {
+        var s = acquireSnapshot();
+        try {
+            for (var delta : s.deltas) {
+                if (delta.postings.containsKey(token)) {
+                    return Double.POSITIVE_INFINITY;
+                }
+            }
+            var e = findEntry(s, token);
+            if (e == null) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return normType == NormalizationType.EUCLIDEAN ? e.normBound : e.lengthBound;
+        } finally {
+            s.release();
+        }
+    }
+
+
+    /**
+     * Returns false for tokens too long for the slots of a hashed dictionary.
+     */
+    boolean fitsDictionary(String token) {
+        return dictionaryFormat != DictionaryFormat.HASHED || token.length() <= MAX_WORD_LENGTH;
+    }
+
+
+    /**
+     * Returns the terms of the published index that start with the prefix,
+     * in sorted order, or null if its dictionary cannot be scanned in order.
+     */
+    public List<String> termsWithPrefix(String prefix) {
+        var s = acquireSnapshot();
+        try {
+            if (s.frontCoded == null) {
+                return null;
+            }
+            var terms = new TreeSet<String>();
+            for (var e : s.frontCoded.prefix(prefix)) {
+                terms.add(e.token);
+            }
+            for (var delta : s.deltas) {
+                for (var token : delta.postings.keySet()) {
+                    if (token.startsWith(prefix)) {
+                        terms.add(token);
+                    }
+                }
+            }
+            return new ArrayList<>(terms);
+        } finally {
+            s.release();
         }
-        index.put(token, list);
-        return list;
     }
 
 
@@ -297,7 +931,7 @@ public class PersistentHashedIndex implements Index {
      * Inserts this token in the main-memory hashtable.
      */
     public void insert(String token, int docID, int offset) {
-        if (token.length() > MAX_WORD_LENGTH) {
+        if (!fitsDictionary(token)) {
             // We don't care about tokens that are too long
             return;
         }
@@ -306,13 +940,316 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     * Inserts a complete postings list for this token in the main-memory hashtable.
+     */
+    @Override
+    public void insert(String token, PostingsList postings) {
+        if (!fitsDictionary(token)) {
+            return;
+        }
+        index.merge(token, postings, PostingsList::concat);
+    }
+
+
     /**
      * Write index to file after indexing is done.
      */
     public void cleanup() {
+        discardUpdates();
         System.err.println(index.keySet().size() + " unique words");
         System.err.print("Writing index to disk...");
         writeIndex();
+        writeKGramIndex();
+        index.clear();
         System.err.println("done!");
     }
+
+
+    /**
+     * Writes the k-gram index, if there is one, next to the index files.
+     */
+    void writeKGramIndex() {
+        if (kgIndex == null) {
+            return;
+        }
+        try {
+            kgIndex.write(Path.of(INDEXDIR, KGRAMS_FNAME));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the k-gram index written with the index files, which is mapped
+     * into memory.
+     *
+     * @return The k-gram index, or null if there is none for k-grams of length k.
+     */
+    public KGramIndex readKGramIndex(int k) {
+        var file = Path.of(INDEXDIR, KGRAMS_FNAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            var kgIndex = KGramIndex.read(file);
+            return kgIndex.getK() == k ? kgIndex : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    // ==================================================================
+    //
+    //  Updates.
+
+    /** The docID of the first document added by the next update. */
+    public int nextDocID() {
+        return nextDocID;
+    }
+
+    /**
+     * The time the files in the index were read, in milliseconds since the
+     * epoch. Files modified later have to be indexed again.
+     */
+    public long indexedAt() {
+        return indexedAt;
+    }
+
+    private static Path deltaPath(int number) {
+        return Path.of(INDEXDIR, DELTA_FNAME + "." + number);
+    }
+
+    /**
+     * Adds documents to the index and deletes documents from it, without
+     * rewriting the index files.
+     * <p>
+     * The postings of the added documents are written to a delta segment,
+     * and the deleted docIDs to the tombstones file; searches see both as
+     * soon as this returns. The norms of the added documents are computed
+     * with the document frequencies of the index, in which deleted documents
+     * still count, and become exact when the deltas are merged into the
+     * index files, which is started in the background.
+     *
+     * @param segment   The postings of the added documents, whose names and lengths are already in docNames and docLengths.
+     * @param removed   The docIDs of the deleted documents.
+     * @param nextDocID The docID after the last added document.
+     * @param startedAt The time the files of the update were read.
+     */
+    public synchronized void update(Map<String, PostingsList> segment, BitSet removed, int nextDocID, long startedAt) throws IOException {
+        // Updates keep the layout of the dictionary they are merged into
+        var s = acquireSnapshot();
+        try {
+            dictionaryFormat = s.dictionaryFormat();
+            segment.keySet().removeIf(token -> !fitsDictionary(token));
+            removed.stream().forEach(docID -> {
+                docNames.remove(docID);
+                docLengths.remove(docID);
+                docNorms.remove(docID);
+            });
+            storeNorms(s, segment, this.nextDocID, nextDocID);
+        } finally {
+            s.release();
+        }
+        var updatedDeltas = new ArrayList<>(deltas);
+        if (!segment.isEmpty()) {
+            var number = deltaCount++;
+            Segment.write(deltaPath(number).toString(), segment);
+            updatedDeltas.add(new Delta(number, segment));
+        }
+        var updatedDeleted = (BitSet) deleted.clone();
+        updatedDeleted.or(removed);
+        deltas = List.copyOf(updatedDeltas);
+        deleted = updatedDeleted;
+        this.nextDocID = Math.max(this.nextDocID, nextDocID);
+        indexedAt = startedAt;
+        writeTombstones();
+        writeDocInfo();
+        writeKGramIndex();
+        publish(openSnapshot());
+        System.err.println("Added " + segment.size() + " terms, deleted " + removed.cardinality() + " documents");
+        if (!deltas.isEmpty() || !deleted.isEmpty()) {
+            merger.execute(this::mergeUpdates);
+        }
+    }
+
+    /**
+     * Computes the norms of the documents firstDocID..nextDocID-1 from their postings.
+     */
+    private void storeNorms(Snapshot s, Map<String, PostingsList> segment, int firstDocID, int nextDocID) {
+        var n = docNames.size();
+        var sumsOfSquares = new double[Math.max(nextDocID - firstDocID, 0)];
+        for (var entry : segment.entrySet()) {
+            var list = entry.getValue();
+            var df = list.size();
+            var e = findEntry(s, entry.getKey());
+            if (e != null) {
+                df += PostingsCodec.iterator(readPostingsData(s, e)).docFrequency();
+            }
+            for (var delta : s.deltas) {
+                var postings = delta.postings.get(entry.getKey());
+                df += postings == null ? 0 : postings.size();
+            }
+            var idf = TfIdf.idf(n, df);
+            for (int i = 0; i < list.size(); i++) {
+                var weight = list.tf(i) * idf;
+                sumsOfSquares[list.docID(i) - firstDocID] += weight * weight;
+            }
+        }
+        for (int i = 0; i < sumsOfSquares.length; i++) {
+            if (docNames.containsKey(firstDocID + i)) {
+                docNorms.put(firstDocID + i, Math.sqrt(sumsOfSquares[i]));
+            }
+        }
+    }
+
+    /**
+     * Rewrites the index files with the postings of the deltas and without
+     * the deleted documents, and publishes them. Updates made meanwhile are
+     * kept for the next merge. The index files are written under the write
+     * lock, so a merge waits for the whole index to be written and the other
+     * way round, while updates can still be made.
+     */
+    void mergeUpdates() {
+        synchronized (writeLock) {
+            List<Delta> merged;
+            BitSet applied;
+            int docCount;
+            Snapshot s;
+            synchronized (this) {
+                merged = deltas;
+                applied = deleted;
+                docCount = nextDocID;
+                if (merged.isEmpty() && applied.isEmpty()) {
+                    return;
+                }
+                s = acquireSnapshot();
+            }
+            try {
+                var start = System.currentTimeMillis();
+                var terms = new TreeMap<String, Entry>();
+                for (var e : readEntries(s)) {
+                    terms.put(e.token, e);
+                }
+                for (var delta : merged) {
+                    for (var token : delta.postings.keySet()) {
+                        terms.putIfAbsent(token, null);
+                    }
+                }
+                clearIndexFiles();
+                var occupied = new boolean[(int) TABLESIZE];
+                var n = docNames.size();
+                // Documents added after the merge started keep their norms
+                var sumsOfSquares = new double[docCount];
+                var lengths = TfIdf.documentLengths();
+                var written = 0;
+                for (var term : terms.entrySet()) {
+                    var list = combinePostings(s, term.getKey(), term.getValue(), merged, applied);
+                    if (list == null) {
+                        continue;
+                    }
+                    TfIdf.addSquaredWeights(list.iterator(), n, sumsOfSquares);
+                    writeTerm(term.getKey(), PostingsCodec.encode(list, dataFormat), TfIdf.maxTfRatio(list.iterator(), lengths),
+                            Float.POSITIVE_INFINITY, occupied);
+                    written++;
+                }
+                TfIdf.storeNorms(sumsOfSquares, docNorms);
+                synchronized (this) {
+                    var remaining = new ArrayList<>(deltas);
+                    remaining.removeAll(merged);
+                    var stillDeleted = (BitSet) deleted.clone();
+                    stillDeleted.andNot(applied);
+                    deltas = List.copyOf(remaining);
+                    deleted = stillDeleted;
+                    publishIndexFiles();
+                    writeTombstones();
+                    writeDocInfo();
+                }
+                // The deltas are only deleted once the index files hold them. If
+                // they are read again, their postings are already in the files and
+                // are skipped when joining
+                for (var delta : merged) {
+                    Files.deleteIfExists(deltaPath(delta.number));
+                }
+                System.err.println("Merged " + merged.size() + " deltas and " + applied.cardinality() + " deletions into "
+                        + written + " terms in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                s.release();
+            }
+        }
+    }
+
+    /**
+     * Forgets the deltas and deletions, before the index is rebuilt from
+     * scratch, and deletes their files.
+     */
+    synchronized void discardUpdates() {
+        try {
+            for (var delta : deltas) {
+                Files.deleteIfExists(deltaPath(delta.number));
+            }
+            Files.deleteIfExists(Path.of(INDEXDIR, TOMBSTONES_FNAME));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        deltas = List.of();
+        deleted = new BitSet();
+        deltaCount = 0;
+        nextDocID = 0;
+        indexedAt = openedAt;
+    }
+
+    private void writeTombstones() throws IOException {
+        var file = Path.of(INDEXDIR, TOMBSTONES_FNAME + NEW_SUFFIX);
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            var words = deleted.toLongArray();
+            out.writeInt(words.length);
+            for (var word : words) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(file, Path.of(INDEXDIR, TOMBSTONES_FNAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the tombstones and the delta segments left by earlier updates.
+     * They are merged into the index files by the next update.
+     */
+    private void readUpdates() throws IOException {
+        var tombstones = Path.of(INDEXDIR, TOMBSTONES_FNAME);
+        if (Files.exists(tombstones)) {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tombstones)))) {
+                var words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                deleted = BitSet.valueOf(words);
+            }
+        }
+        var loaded = new ArrayList<Delta>();
+        try (var files = Files.newDirectoryStream(Path.of(INDEXDIR), DELTA_FNAME + ".*")) {
+            for (var file : files) {
+                int number;
+                try {
+                    number = Integer.parseInt(file.getFileName().toString().substring(DELTA_FNAME.length() + 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                var postings = new HashMap<String, PostingsList>();
+                try (var reader = new Segment.Reader(file.toString(), number)) {
+                    while (reader.next()) {
+                        postings.put(reader.term(), PostingsCodec.decode(reader.data()));
+                    }
+                }
+                loaded.add(new Delta(number, postings));
+                deltaCount = Math.max(deltaCount, number + 1);
+            }
+        }
+        loaded.sort(Comparator.comparingInt(delta -> delta.number));
+        deltas = List.copyOf(loaded);
+    }
 }
@@ -2,154 +2,208 @@ package ir;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.WeakHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
+/**
+ * A persistent index that does not need to hold the whole index in memory.
+ * <p>
+ * The estimated heap size of the main-memory index is kept up to date as
+ * tokens are inserted. When it reaches the flush budget at the start of a
+ * document, the index is written to a segment file with its terms in
+ * sorted order (see {@link Segment}) and cleared, so the memory used does
+ * not depend on the size of the collection or of its documents.
+ * When indexing is done, all segments are merged in one pass into the
+ * dictionary and data files, reading them side by side like in a k-way
+ * merge sort. Segments hold increasing docID ranges, so the postings of a
+ * term are joined by copying their bytes (see {@link PostingsCodec#concat}).
+ */
 public class PersistentScalableHashedIndex extends PersistentHashedIndex {
 
-    public static final int GROUPSIZE = 6000;
-    public static final int WEAK_CAPACITY = 120000;
+    /** The segment file name prefix */
+    public static final String SEGMENT_FNAME = "segment";
 
-    private final Semaphore groupSem = new Semaphore(0);
-    private final CountDownLatch cleanupLatch = new CountDownLatch(1);
-    private int lastDocID = 0;
-    private int docIDProcessed = 0;
-    private int currentIndexGroup = 0;
+    /** Estimated bytes of a term in the main-memory index, besides its list and characters. */
+    static final int TERM_OVERHEAD = 96;
+
+    /** Default flush budget, as a fraction of the maximum heap size. */
+    static final double DEFAULT_FLUSH_FRACTION = 0.25;
+
+    private int lastDocID = -1;
+    private int segmentCount = 0;
+
+    /** The estimated heap size of the main-memory index, in bytes. */
+    private long indexBytes = 0;
+
+    /** The index is written to a segment once indexBytes reaches this. */
+    private long flushBytes = (long) (Runtime.getRuntime().maxMemory() * DEFAULT_FLUSH_FRACTION);
 
     PersistentScalableHashedIndex() {
-        new Thread(this::workerThread).start();
+    }
+
+    /**
+     * Sets the estimated heap size at which the main-memory index is
+     * written to a segment.
+     */
+    public void setFlushBytes(long bytes) {
+        flushBytes = bytes;
+    }
+
+    /** The estimated heap size at which the main-memory index is written to a segment. */
+    public long flushBytes() {
+        return flushBytes;
+    }
+
+    /** The estimated heap size of the main-memory index, in bytes. */
+    public long indexBytes() {
+        return indexBytes;
     }
 
     @Override
     public void insert(String token, int docID, int offset) {
         if (docID != lastDocID) {
+            // Segments hold whole documents, so the index is only flushed between them
             lastDocID = docID;
-            docIDProcessed++;
-        }
-        if (docIDProcessed == GROUPSIZE) {
-            writeIndex();
-            index.clear();
-            free = 0;
-            docIDProcessed = 0;
-            currentIndexGroup++;
-            try {
-                dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME + "." + currentIndexGroup, "rw");
-                dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME + "." + currentIndexGroup, "rw");
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (indexBytes >= flushBytes) {
+                writeSegment();
             }
-            System.err.println("New index group: " + currentIndexGroup);
-            groupSem.release();
         }
-        super.insert(token, docID, offset);
+        if (!fitsDictionary(token)) {
+            return;
+        }
+        var list = index.get(token);
+        if (list == null) {
+            list = new PostingsList();
+            index.put(token, list);
+            indexBytes += TERM_OVERHEAD + 2L * token.length();
+        } else {
+            indexBytes -= list.estimatedBytes();
+        }
+        list.add(docID, offset);
+        indexBytes += list.estimatedBytes();
+    }
+
+    /**
+     * Inserts a complete postings list, flushing the main-memory index
+     * first if it has reached the budget.
+     */
+    @Override
+    public void insert(String token, PostingsList postings) {
+        if (!fitsDictionary(token)) {
+            return;
+        }
+        if (indexBytes >= flushBytes) {
+            writeSegment();
+        }
+        var old = index.get(token);
+        indexBytes -= old == null ? -(TERM_OVERHEAD + 2L * token.length()) : old.estimatedBytes();
+        super.insert(token, postings);
+        indexBytes += index.get(token).estimatedBytes();
     }
 
     @Override
     public void cleanup() {
         System.err.println("Start cleanup");
-        writeIndex();
-        index = new WeakHashMap<>(WEAK_CAPACITY);
-        groupSem.release(2);
+        discardUpdates();
+        writeSegment();
         try {
-            cleanupLatch.await();
-            dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw");
-            dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw");
-        } catch (InterruptedException | IOException e) {
+            synchronized (writeLock) {
+                mergeSegments();
+            }
+            writeDocInfo();
+            writeKGramIndex();
+        } catch (IOException e) {
             e.printStackTrace();
         }
         System.err.println("Index cleanup done");
     }
 
-    private void workerThread() {
-        int mergeGroup = 0;
-        while (true) {
-            try {
-                groupSem.acquire();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            if (mergeGroup <= currentIndexGroup) {
-                if (mergeGroup > 0) {
-                    mergeFiles(mergeGroup);
-                    System.err.println("Merged group " + mergeGroup);
-                }
-                mergeGroup++;
-            } else {
-                break;
-            }
+    private String segmentFileName(int segment) {
+        return INDEXDIR + "/" + SEGMENT_FNAME + "." + segment;
+    }
+
+    /**
+     * Writes the main-memory index to a new segment and clears it.
+     */
+    void writeSegment() {
+        if (index.isEmpty()) {
+            return;
+        }
+        try {
+            var terms = Segment.write(segmentFileName(segmentCount), index);
+            System.err.println("Wrote segment " + segmentCount + " with " + terms + " terms, about " + (indexBytes >> 20) + " MB");
+            segmentCount++;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        cleanupLatch.countDown();
+        index.clear();
+        indexBytes = 0;
     }
 
     /**
-     * Merges two index files into a new one.
+     * Merges all segments into the dictionary and data files, and deletes them.
      */
-    private void mergeFiles(int mergeGroup) {
-        var ndict1 = INDEXDIR + "/" + DICTIONARY_FNAME;
-        var ndict2 = INDEXDIR + "/" + DICTIONARY_FNAME + "." + mergeGroup;
-        var ndata1 = INDEXDIR + "/" + DATA_FNAME;
-        var ndata2 = INDEXDIR + "/" + DATA_FNAME + "." + mergeGroup;
-        var ntmpdict = INDEXDIR + "/" + DICTIONARY_FNAME + ".tmp";
-        var ntmpdata = INDEXDIR + "/" + DATA_FNAME + ".tmp";
-        try (var dict1 = new RandomAccessFile(ndict1, "r");
-             var dict2 = new RandomAccessFile(ndict2, "r");
-             var data1 = new RandomAccessFile(ndata1, "r");
-             var data2 = new RandomAccessFile(ndata2, "r");
-             var newDict = new RandomAccessFile(ntmpdict, "rw");
-             var newData = new RandomAccessFile(ntmpdata, "rw")) {
-            var merged = new boolean[(int) TABLESIZE];
-            long newFree = 0;
-            for (long i = 0; i < TABLESIZE; i++) {
-                var entry1 = readEntry(dict1, i * ENTRYSIZE);
-                if (entry1 == null) {
-                    continue;
-                }
-                long j = Math.abs(entry1.token.hashCode()) % TABLESIZE;
-                var entry2 = readEntry(dict2, j * ENTRYSIZE);
-                while (entry2 != null) {
-                    if (entry2.token.equals(entry1.token)) {
-                        merged[(int) j] = true;
-                        break;
-                    }
-                    j = (j + 1) % TABLESIZE;
-                    entry2 = readEntry(dict2, j * ENTRYSIZE);
-                }
-                if (entry2 == null) {
-                    writeEntry(newDict, new Entry(entry1.token, newFree, entry1.dataSize), i * ENTRYSIZE);
-                    newFree += writeData(newData, readData(data1, entry1.dataPtr, entry1.dataSize), newFree);
-                } else {
-                    writeEntry(newDict, new Entry(entry1.token, newFree, entry1.dataSize + entry2.dataSize), i * ENTRYSIZE);
-                    newFree += writeData(newData, readData(data1, entry1.dataPtr, entry1.dataSize), newFree);
-                    newFree += writeData(newData, readData(data2, entry2.dataPtr, entry2.dataSize), newFree);
-                }
+    void mergeSegments() throws IOException {
+        var queue = new PriorityQueue<Segment.Reader>(
+                Comparator.comparing(Segment.Reader::term).thenComparingInt(Segment.Reader::number));
+        for (int i = 0; i < segmentCount; i++) {
+            var reader = new Segment.Reader(segmentFileName(i), i);
+            if (reader.next()) {
+                queue.add(reader);
+            } else {
+                reader.close();
             }
-            for (long i = 0; i < TABLESIZE; i++) {
-                if (merged[(int) i]) {
-                    continue;
-                }
-                var entry2 = readEntry(dict2, i * ENTRYSIZE);
-                if (entry2 == null) {
-                    continue;
-                }
-                long j = Math.abs(entry2.token.hashCode()) % TABLESIZE;
-                var entry3 = readEntry(newDict, j * ENTRYSIZE);
-                while (entry3 != null) {
-                    j = (j + 1) % TABLESIZE;
-                    entry3 = readEntry(newDict, j * ENTRYSIZE);
+        }
+        clearIndexFiles();
+        var occupied = new boolean[(int) TABLESIZE];
+        var parts = new ArrayList<ByteBuffer>();
+        var n = docNames.size();
+        var sumsOfSquares = TfIdf.newDocumentArray();
+        var lengths = TfIdf.documentLengths();
+        var terms = 0;
+        var collisions = 0;
+        while (!queue.isEmpty()) {
+            var term = queue.peek().term();
+            parts.clear();
+            // Readers with the same term come out in segment order, i.e. in docID order
+            while (!queue.isEmpty() && queue.peek().term().equals(term)) {
+                var reader = queue.poll();
+                parts.add(ByteBuffer.wrap(reader.data()));
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
                 }
-                writeEntry(newDict, new Entry(entry2.token, newFree, entry2.dataSize), j * ENTRYSIZE);
-                newFree += writeData(newData, readData(data2, entry2.dataPtr, entry2.dataSize), newFree);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            var data = mergePostings(parts);
+            TfIdf.addSquaredWeights(PostingsCodec.iterator(ByteBuffer.wrap(data)), n, sumsOfSquares);
+            // The norms are only known once all terms are merged, so no norm bound is stored
+            collisions += writeTerm(term, data, TfIdf.maxTfRatio(PostingsCodec.iterator(ByteBuffer.wrap(data)), lengths),
+                    Float.POSITIVE_INFINITY, occupied);
+            terms++;
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            new File(segmentFileName(i)).delete();
+        }
+        segmentCount = 0;
+        TfIdf.storeNorms(sumsOfSquares, docNorms);
+        publishIndexFiles();
+        System.err.println("Merged " + terms + " terms, " + collisions + " collisions.");
+    }
+
+    /**
+     * Joins the postings of a term from several segments in the format of the data file.
+     */
+    private byte[] mergePostings(ArrayList<ByteBuffer> parts) {
+        if (dataFormat == PostingsFormat.BINARY) {
+            return PostingsCodec.concat(parts);
+        }
+        var list = new PostingsList();
+        for (var part : parts) {
+            list.append(PostingsCodec.decode(part));
         }
-        new File(ndict1).delete();
-        new File(ndict2).delete();
-        new File(ndata1).delete();
-        new File(ndata2).delete();
-        new File(ntmpdict).renameTo(new File(ndict1));
-        new File(ntmpdata).renameTo(new File(ndata1));
+        return PostingsCodec.encode(list, dataFormat);
     }
 }
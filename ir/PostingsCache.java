@@ -0,0 +1,121 @@
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of encoded postings lists, used by persistent indexes.
+ * <p>
+ * The lists are kept as they are stored, so a search iterating over a cached
+ * list still only decodes the postings it reaches, and can skip over the
+ * others. Every entry is weighted by the size of its encoded list, and the
+ * least recently used entries are evicted once the total weight exceeds the
+ * byte budget. Terms that are not in the index are cached as well, so
+ * repeated lookups of unknown terms do not probe the dictionary again.
+ */
+public class PostingsCache {
+
+    /** Stands for a term that is known not to be in the index. */
+    public static final ByteBuffer ABSENT = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    /** Fixed weight of an entry, for the map entry, the key and the buffer object. */
+    static final int ENTRY_OVERHEAD = 96;
+
+    /** The entries in access order, least recently used first. */
+    private final LinkedHashMap<String, ByteBuffer> map = new LinkedHashMap<>(1024, 0.75f, true);
+
+    /** The maximum total weight of all entries, in bytes. */
+    private final long capacity;
+
+    /** The total weight of all entries, in bytes. */
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public PostingsCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached list of a term, {@link #ABSENT} if the term is cached
+     * as not being in the index, or null if the term is not cached.
+     */
+    public synchronized ByteBuffer peek(String token) {
+        var list = map.get(token);
+        if (list == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return list;
+    }
+
+    /**
+     * Returns the encoded list of a term, loading and caching it if it is not
+     * cached. The loader returns null for terms that are not in the index, and
+     * so does this method. The loader runs without holding the lock of the
+     * cache. The returned buffer may be shared, so it must not be moved.
+     */
+    public ByteBuffer get(String token, Function<String, ByteBuffer> loader) {
+        var list = peek(token);
+        if (list == null) {
+            list = loader.apply(token);
+            put(token, list);
+        }
+        return list == ABSENT ? null : list;
+    }
+
+    /**
+     * Caches the encoded list of a term; null means that the term is not in the index.
+     */
+    public synchronized void put(String token, ByteBuffer list) {
+        var value = list == null ? ABSENT : list;
+        var weight = weight(token, value);
+        if (weight > capacity) {
+            return;
+        }
+        var old = map.put(token, value);
+        if (old != null) {
+            bytes -= weight(token, old);
+        }
+        bytes += weight;
+        var it = map.entrySet().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            var e = it.next();
+            bytes -= weight(e.getKey(), e.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** Removes all entries. */
+    public synchronized void clear() {
+        map.clear();
+        bytes = 0;
+    }
+
+    private static long weight(String token, ByteBuffer list) {
+        return ENTRY_OVERHEAD + 2L * token.length() + list.remaining();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %.1f/%.1f MB, %d hits, %d misses, %d evictions",
+                map.size(), bytes / 1048576.0, capacity / 1048576.0, hits, misses, evictions);
+    }
+}
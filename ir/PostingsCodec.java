@@ -0,0 +1,483 @@
+package ir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes and decodes postings lists for the data file of a persistent index.
+ * <p>
+ * The binary format starts with a version byte, followed by the number of
+ * documents and then, for every document, the gap to the previous docID,
+ * the term frequency and the gaps between consecutive positions. All integers
+ * are variable-byte encoded (7 bits per byte, high bit set on every byte but
+ * the last one).
+ * <p>
+ * Version 2 adds the block size and a skip table between the document count
+ * and the postings. The postings are split into blocks of about sqrt(n)
+ * entries (block size 0 means there is no skip table), and for every block
+ * but the first the table holds the docID of the posting before the
+ * block and the byte offset of the block from the start of the postings, both
+ * as gaps to the previous skip entry. {@link #iterator} uses the table to jump
+ * over whole blocks without decoding them.
+ * <p>
+ * Version 3, which is the one written, stores the last docID and the number
+ * of skip entries instead of the block size, and every skip entry also holds
+ * the index of the first posting of its block. Blocks may then have any size,
+ * which lets {@link #concat} join lists by copying their bytes: only the first
+ * docID gap of every appended list and the headers have to be rewritten.
+ * <p>
+ * Text encoded lists always start with an ASCII digit, so the version byte
+ * tells the formats apart and old data files can still be read.
+ */
+public final class PostingsCodec {
+
+    /** Version byte of the first binary format. */
+    public static final byte BINARY_V1 = 1;
+
+    /** Version byte of the binary format with skip table. */
+    public static final byte BINARY_V2 = 2;
+
+    /** Version byte of the binary format that can be concatenated. */
+    public static final byte BINARY_V3 = 3;
+
+    /** Lists shorter than this are written without skip table. */
+    static final int MIN_SKIP_LIST_SIZE = 32;
+
+    private PostingsCodec() {
+    }
+
+    /**
+     * Encodes the list in the given format.
+     */
+    public static byte[] encode(PostingsList list, PostingsFormat format) {
+        return switch (format) {
+            case TEXT -> list.toString().getBytes(StandardCharsets.US_ASCII);
+            case BINARY -> encodeBinary(list);
+        };
+    }
+
+    /**
+     * Decodes a list stored in any of the supported formats.
+     */
+    public static PostingsList decode(byte[] data) {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes a list from the remaining bytes of the buffer.
+     */
+    public static PostingsList decode(ByteBuffer buf) {
+        if (isBinary(buf)) {
+            var header = new Header(buf);
+            return decodePostings(buf.position(buf.position() + header.bodyStart), header.docCount);
+        }
+        var text = new byte[buf.remaining()];
+        buf.get(text);
+        return PostingsList.fromString(new String(text, StandardCharsets.US_ASCII));
+    }
+
+    /** The most bytes the version byte and the document count of a binary list take. */
+    static final int DOC_COUNT_BYTES = 6;
+
+    /**
+     * Returns the number of documents of a list stored in any of the
+     * supported formats, without moving the buffer. Binary lists are not
+     * decoded, and only their first {@link #DOC_COUNT_BYTES} bytes are read.
+     */
+    public static int docFrequency(ByteBuffer buf) {
+        if (isBinary(buf)) {
+            return readVInt(buf.duplicate().position(buf.position() + 1));
+        }
+        return decode(buf.duplicate()).size();
+    }
+
+    static boolean isBinary(ByteBuffer buf) {
+        if (!buf.hasRemaining()) {
+            return false;
+        }
+        var version = buf.get(buf.position());
+        return version == BINARY_V1 || version == BINARY_V2 || version == BINARY_V3;
+    }
+
+    /**
+     * Returns an iterator over a list stored in any of the supported formats.
+     * Binary lists are decoded lazily, other lists are decoded up front.
+     */
+    public static PostingsIterator iterator(ByteBuffer buf) {
+        if (isBinary(buf)) {
+            return new BinaryIterator(buf.slice());
+        }
+        return decode(buf).iterator();
+    }
+
+    /**
+     * Concatenates encoded lists, where all docIDs of a list come after
+     * the docIDs of the lists before it, into one version 3 binary list.
+     * Lists in version 3 are copied without being decoded; every list
+     * that is long enough to have skips itself gets a skip entry at its
+     * start. Lists in other formats are re-encoded first.
+     */
+    public static byte[] concat(List<ByteBuffer> parts) {
+        if (parts.size() == 1 && parts.getFirst().hasRemaining() && parts.getFirst().get(parts.getFirst().position()) == BINARY_V3) {
+            var data = new byte[parts.getFirst().remaining()];
+            parts.getFirst().get(data);
+            return data;
+        }
+        var skips = new SkipWriter();
+        var body = new Encoder(256);
+        var docCount = 0;
+        var lastDocID = 0;
+        for (var part : parts) {
+            if (!isBinary(part) || part.get(part.position()) != BINARY_V3) {
+                part = ByteBuffer.wrap(encodeBinary(decode(part)));
+            }
+            part = part.slice();
+            var header = new Header(part);
+            if (header.docCount == 0) {
+                continue;
+            }
+            if (docCount > 0 && header.docCount >= MIN_SKIP_LIST_SIZE) {
+                skips.add(lastDocID, docCount, body.length());
+            }
+            // The first docID gap of the part is its first docID
+            part.position(header.bodyStart);
+            var firstDocID = readVInt(part);
+            var firstGapLength = part.position() - header.bodyStart;
+            body.writeVInt(firstDocID - lastDocID);
+            var shift = body.length() - firstGapLength;
+            body.write(part);
+            for (int i = 0; i < header.skipIndexes.length; i++) {
+                skips.add(header.skipDocIDs[i], docCount + header.skipIndexes[i], header.skipPtrs[i] + shift);
+            }
+            docCount += header.docCount;
+            lastDocID = header.lastDocID;
+        }
+        return writeBinary(docCount, lastDocID, skips, body);
+    }
+
+    private static byte[] encodeBinary(PostingsList list) {
+        var size = list.size();
+        var interval = size < MIN_SKIP_LIST_SIZE ? size : (int) Math.ceil(Math.sqrt(size));
+        var skips = new SkipWriter();
+        var body = new Encoder(16 + size * 8);
+        var lastDocID = 0;
+        var positions = list.positions();
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && i % interval == 0) {
+                skips.add(lastDocID, i, body.length());
+            }
+            body.writeVInt(list.docID(i) - lastDocID);
+            lastDocID = list.docID(i);
+            body.writeVInt(list.tf(i));
+            var lastOffset = 0;
+            for (int j = list.positionStart(i); j < list.positionEnd(i); j++) {
+                body.writeVInt(positions[j] - lastOffset);
+                lastOffset = positions[j];
+            }
+        }
+        return writeBinary(size, lastDocID, skips, body);
+    }
+
+    private static byte[] writeBinary(int docCount, int lastDocID, SkipWriter skips, Encoder body) {
+        var out = new Encoder(16 + skips.entries.length() + body.length());
+        out.writeByte(BINARY_V3);
+        out.writeVInt(docCount);
+        out.writeVInt(lastDocID);
+        out.writeVInt(skips.count);
+        out.write(skips.entries);
+        out.write(body);
+        return out.toByteArray();
+    }
+
+    private static PostingsList decodePostings(ByteBuffer buf, int docCount) {
+        // Every docID gap, frequency and position takes at least one byte
+        var list = new PostingsList(docCount, buf.remaining() - 2 * docCount);
+        var docID = 0;
+        for (int i = 0; i < docCount; i++) {
+            docID += readVInt(buf);
+            list.add(docID);
+            var tf = readVInt(buf);
+            var offset = 0;
+            for (int j = 0; j < tf; j++) {
+                offset += readVInt(buf);
+                list.addPosition(offset);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Reads a variable-byte encoded integer at the position of the buffer.
+     */
+    static int readVInt(ByteBuffer buf) {
+        int b = buf.get();
+        var value = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+        }
+        return value;
+    }
+
+    /**
+     * Reads a variable-byte encoded long at the position of the buffer.
+     */
+    static long readVLong(ByteBuffer buf) {
+        int b = buf.get();
+        long value = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+        }
+        return value;
+    }
+
+
+    /**
+     * A growable byte array that variable-byte encodes integers.
+     */
+    static final class Encoder {
+        private byte[] data;
+        private int length = 0;
+
+        Encoder(int capacity) {
+            data = new byte[Math.max(capacity, 16)];
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > data.length) {
+                data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+            }
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(length + 1);
+            data[length++] = (byte) b;
+        }
+
+        void writeVInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeVLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(this.length + length);
+            System.arraycopy(bytes, offset, data, this.length, length);
+            this.length += length;
+        }
+
+        void write(Encoder other) {
+            ensureCapacity(length + other.length);
+            System.arraycopy(other.data, 0, data, length, other.length);
+            length += other.length;
+        }
+
+        /** Copies the remaining bytes of the buffer. */
+        void write(ByteBuffer buf) {
+            var n = buf.remaining();
+            ensureCapacity(length + n);
+            buf.get(data, length, n);
+            length += n;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+
+    /**
+     * Collects the skip entries of a version 3 list, as gaps to the previous entry.
+     */
+    private static final class SkipWriter {
+        private final Encoder entries = new Encoder(16);
+        private int count = 0;
+        private int lastDocID = 0;
+        private int lastIndex = 0;
+        private int lastPtr = 0;
+
+        /**
+         * Adds a skip to posting <code>index</code>, which starts <code>ptr</code>
+         * bytes into the postings and follows the posting with <code>docID</code>.
+         */
+        void add(int docID, int index, int ptr) {
+            entries.writeVInt(docID - lastDocID);
+            entries.writeVInt(index - lastIndex);
+            entries.writeVInt(ptr - lastPtr);
+            lastDocID = docID;
+            lastIndex = index;
+            lastPtr = ptr;
+            count++;
+        }
+    }
+
+
+    /**
+     * The header of a binary list in any version, with the skip table
+     * decoded into arrays of absolute values.
+     */
+    static final class Header {
+        final int docCount;
+
+        /** The last docID of the list, or -1 if the version does not store it. */
+        int lastDocID = -1;
+
+        /** For every skip, the index of the first posting of its block. */
+        int[] skipIndexes = new int[0];
+
+        /** For every skip, the docID of the posting before its block. */
+        int[] skipDocIDs = new int[0];
+
+        /** For every skip, the byte offset of its block from the start of the postings. */
+        int[] skipPtrs = new int[0];
+
+        /** The byte offset of the first posting from the start of the list. */
+        final int bodyStart;
+
+        /** Parses the header at the position of the buffer, without moving it. */
+        Header(ByteBuffer buf) {
+            var in = buf.duplicate();
+            var version = in.get();
+            docCount = readVInt(in);
+            var skipCount = 0;
+            var interval = 0;
+            if (version == BINARY_V2) {
+                interval = readVInt(in);
+                skipCount = interval == 0 ? 0 : (docCount - 1) / interval;
+            } else if (version == BINARY_V3) {
+                lastDocID = readVInt(in);
+                skipCount = readVInt(in);
+            }
+            if (skipCount > 0) {
+                skipIndexes = new int[skipCount];
+                skipDocIDs = new int[skipCount];
+                skipPtrs = new int[skipCount];
+                for (int i = 0; i < skipCount; i++) {
+                    skipDocIDs[i] = (i == 0 ? 0 : skipDocIDs[i - 1]) + readVInt(in);
+                    if (version == BINARY_V3) {
+                        skipIndexes[i] = (i == 0 ? 0 : skipIndexes[i - 1]) + readVInt(in);
+                    } else {
+                        skipIndexes[i] = (i + 1) * interval;
+                    }
+                    skipPtrs[i] = (i == 0 ? 0 : skipPtrs[i - 1]) + readVInt(in);
+                }
+            }
+            bodyStart = in.position() - buf.position();
+        }
+    }
+
+
+    /**
+     * Iterates over a binary encoded list without decoding it up front.
+     * Positions that are not asked for are skipped byte by byte, and
+     * advance jumps over whole blocks using the skip table.
+     */
+    static final class BinaryIterator implements PostingsIterator {
+        private final ByteBuffer buf;
+        private final int docCount;
+        private int ptr;
+        private int index = -1;
+        private int docID = -1;
+        private int tf;
+        private int positionsLeft;
+        private int lastPosition;
+
+        private final Header header;
+        private int nextSkip = 0;
+
+        BinaryIterator(ByteBuffer buf) {
+            this.buf = buf;
+            header = new Header(buf);
+            docCount = header.docCount;
+            ptr = header.bodyStart;
+        }
+
+        private int readVInt() {
+            int b = buf.get(ptr++);
+            var value = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = buf.get(ptr++);
+                value |= (b & 0x7F) << shift;
+            }
+            return value;
+        }
+
+        @Override
+        public int docID() {
+            return docID;
+        }
+
+        @Override
+        public int nextDoc() {
+            // Skip the positions that were not read, one variable-byte integer at a time
+            for (; positionsLeft > 0; positionsLeft--) {
+                while ((buf.get(ptr++) & 0x80) != 0) {
+                }
+            }
+            if (++index >= docCount) {
+                index = docCount;
+                return docID = NO_MORE_DOCS;
+            }
+            docID = Math.max(docID, 0) + readVInt();
+            tf = readVInt();
+            positionsLeft = tf;
+            lastPosition = 0;
+            return docID;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (docID >= target) {
+                return docID;
+            }
+            // Jump to the last block whose preceding posting is still before the target
+            var skip = -1;
+            while (nextSkip < header.skipDocIDs.length && header.skipDocIDs[nextSkip] < target) {
+                skip = nextSkip++;
+            }
+            if (skip >= 0 && header.skipIndexes[skip] > index) {
+                ptr = header.bodyStart + header.skipPtrs[skip];
+                index = header.skipIndexes[skip] - 1;
+                docID = header.skipDocIDs[skip];
+                positionsLeft = 0;
+            }
+            while (docID < target) {
+                nextDoc();
+            }
+            return docID;
+        }
+
+        @Override
+        public int tf() {
+            return tf;
+        }
+
+        @Override
+        public int nextPosition() {
+            positionsLeft--;
+            return lastPosition += readVInt();
+        }
+
+        @Override
+        public int docFrequency() {
+            return docCount;
+        }
+    }
+}
@@ -34,6 +34,12 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
         this.offsets = new ArrayList<>();
     }
 
+    public PostingsEntry(int docID, double score, List<Integer> offsets) {
+        this.docID = docID;
+        this.score = score;
+        this.offsets = offsets;
+    }
+
     @Override
     public String toString() {
         var sb = new StringBuilder();
@@ -0,0 +1,9 @@
+package ir;
+
+/**
+ *  The encodings a persistent index can use for the postings
+ *  lists in its data file.
+ */
+public enum PostingsFormat {
+    TEXT, BINARY
+}
@@ -0,0 +1,37 @@
+package ir;
+
+/**
+ * Iterates over the postings of one term in increasing docID order.
+ * <p>
+ * The iterator starts before the first posting, so {@link #nextDoc} or
+ * {@link #advance} must be called before {@link #docID} returns a document.
+ * The positions of the current posting can be read with {@link #nextPosition},
+ * {@link #tf} times at most.
+ */
+public interface PostingsIterator {
+
+    /** Returned by {@link #docID} once the iterator is exhausted. */
+    int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /** The docID of the current posting, -1 before the first call to nextDoc or advance. */
+    int docID();
+
+    /** Moves to the next posting and returns its docID, or {@link #NO_MORE_DOCS}. */
+    int nextDoc();
+
+    /**
+     * Moves to the first posting whose docID is at least <code>target</code> and
+     * returns its docID, or {@link #NO_MORE_DOCS}. Does not move if the current
+     * posting already satisfies this.
+     */
+    int advance(int target);
+
+    /** The number of positions of the current posting. */
+    int tf();
+
+    /** Returns the next position of the current posting. */
+    int nextPosition();
+
+    /** The number of postings (documents) this iterator goes through. */
+    int docFrequency();
+}
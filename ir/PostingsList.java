@@ -7,68 +7,439 @@
 
 package ir;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * A postings list stored in growable primitive arrays.
+ * <p>
+ * Entry i has docID <code>docIDs[i]</code> and its positions are
+ * <code>positions[positionEnds[i-1] .. positionEnds[i]-1]</code>, so no object
+ * is allocated per entry or per position. Scores are only needed for ranked
+ * results and are allocated on the first call to {@link #setScore}.
+ * Callers that want objects can still use {@link #get}, which returns a
+ * {@link PostingsEntry} view of one entry.
+ */
 public class PostingsList {
 
-    /** The postings list */
-    private final ArrayList<PostingsEntry> list = new ArrayList<>();
+    /** The docIDs of the entries, in increasing order. */
+    private int[] docIDs;
+
+    /** For every entry, the index in 'positions' after its last position. */
+    private int[] positionEnds;
+
+    /** The positions of all entries, one entry after the other. */
+    private int[] positions;
+
+    /** The scores of the entries, or null if no score has been set. */
+    private double[] scores;
+
+    /** Number of entries. */
+    private int size = 0;
+
+    /** Number of positions. */
+    private int positionCount = 0;
+
+    /** Size ratio above which intersections gallop through the longer list. */
+    static final int GALLOP_RATIO = 16;
+
+
+    public PostingsList() {
+        this(1, 2);
+    }
+
+    /**
+     * Creates an empty list with room for the given number of entries
+     * and positions.
+     */
+    public PostingsList(int entryCapacity, int positionCapacity) {
+        docIDs = new int[Math.max(entryCapacity, 1)];
+        positionEnds = new int[docIDs.length];
+        positions = new int[Math.max(positionCapacity, 1)];
+    }
 
 
     /** Number of postings in this list. */
     public int size() {
-        return list.size();
+        return size;
+    }
+
+    /** Returns the docID of the ith posting. */
+    public int docID(int i) {
+        return docIDs[i];
+    }
+
+    /** Returns the number of positions (the term frequency) of the ith posting. */
+    public int tf(int i) {
+        return positionEnds[i] - positionStart(i);
+    }
+
+    /** Returns the index in {@link #positions()} of the first position of the ith posting. */
+    public int positionStart(int i) {
+        return i == 0 ? 0 : positionEnds[i - 1];
+    }
+
+    /** Returns the index in {@link #positions()} after the last position of the ith posting. */
+    public int positionEnd(int i) {
+        return positionEnds[i];
+    }
+
+    /**
+     * Returns the backing array of positions. Only the ranges given by
+     * {@link #positionStart} and {@link #positionEnd} are valid.
+     */
+    public int[] positions() {
+        return positions;
+    }
+
+    /** Returns the score of the ith posting. */
+    public double score(int i) {
+        return scores == null ? 0 : scores[i];
+    }
+
+    /** Sets the score of the ith posting. */
+    public void setScore(int i, double score) {
+        if (scores == null) {
+            scores = new double[docIDs.length];
+        }
+        scores[i] = score;
     }
 
-    /** Returns the ith posting. */
+    /** Returns an estimate of the number of bytes this list takes on the heap. */
+    public long estimatedBytes() {
+        var bytes = 4L * (docIDs.length + positionEnds.length + positions.length) + 3 * 16;
+        return scores == null ? bytes : bytes + 8L * scores.length + 16;
+    }
+
+    /** Returns a view of the ith posting. */
     public PostingsEntry get(int i) {
-        return list.get(i);
+        return new PostingsEntry(docIDs[i], score(i), new Positions(positionStart(i), positionEnds[i]));
+    }
+
+    /** Returns an iterator over the postings of this list. */
+    public PostingsIterator iterator() {
+        return new ArrayIterator();
+    }
+
+    /**
+     * Returns the index of the posting with the given docID, or a negative
+     * value if there is none.
+     */
+    public int indexOf(int docID) {
+        return Arrays.binarySearch(docIDs, 0, size, docID);
     }
 
     public PostingsEntry searchDocID(int docID) {
-        var i = Collections.binarySearch(
-                list,
-                new PostingsEntry(docID, 0),
-                Comparator.comparingInt(e -> e.docID)
-        );
-        return i >= 0 ? list.get(i) : null;
+        var i = indexOf(docID);
+        return i >= 0 ? get(i) : null;
     }
 
+    /**
+     * Adds a position to the posting of docID, which is appended
+     * if it is not the last posting already.
+     */
     public void add(int docID, int offset) {
-        if (list.isEmpty() || list.getLast().docID != docID) {
-            list.add(new PostingsEntry(docID, 0));
+        if (size == 0 || docIDs[size - 1] != docID) {
+            add(docID);
         }
-        list.getLast().offsets.add(offset);
+        addPosition(offset);
     }
 
-    public PostingsList intersect(PostingsList other) {
-        var result = new PostingsList();
-        for (var entry : this.list) {
-            if (other.searchDocID(entry.docID) != null) {
-                // We don't care about the actual offset values, so we can just add an empty PostingsEntry
-                result.list.add(new PostingsEntry(entry.docID, 0));
+    /** Appends a posting without positions. */
+    public void add(int docID) {
+        if (size == docIDs.length) {
+            var capacity = Math.max(4, size + (size >> 1));
+            docIDs = Arrays.copyOf(docIDs, capacity);
+            positionEnds = Arrays.copyOf(positionEnds, capacity);
+            if (scores != null) {
+                scores = Arrays.copyOf(scores, capacity);
             }
         }
+        docIDs[size] = docID;
+        positionEnds[size] = positionCount;
+        size++;
+    }
+
+    /** Appends a posting without positions but with a score. */
+    public void add(int docID, double score) {
+        add(docID);
+        setScore(size - 1, score);
+    }
+
+    /** Adds a position to the last posting. */
+    void addPosition(int offset) {
+        if (positionCount == positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(4, positionCount + (positionCount >> 1)));
+        }
+        positions[positionCount++] = offset;
+        positionEnds[size - 1] = positionCount;
+    }
+
+    /** Appends all entries of a list whose docIDs all come after the ones in this list. */
+    void append(PostingsList other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.docIDs[i]);
+            if (other.scores != null) {
+                setScore(size - 1, other.scores[i]);
+            }
+            for (int j = other.positionStart(i); j < other.positionEnds[i]; j++) {
+                addPosition(other.positions[j]);
+            }
+        }
+    }
+
+    /**
+     * Appends the entries of a list that are not deleted and whose docIDs
+     * come after the last one in this list. Entries of a docID that is
+     * already in this list are skipped, so appending the same list twice
+     * has no effect.
+     *
+     * @param deleted The deleted docIDs.
+     */
+    void append(PostingsList other, BitSet deleted) {
+        for (int i = 0; i < other.size; i++) {
+            var docID = other.docIDs[i];
+            if (deleted.get(docID) || (size > 0 && docIDs[size - 1] >= docID)) {
+                continue;
+            }
+            add(docID);
+            for (int j = other.positionStart(i); j < other.positionEnds[i]; j++) {
+                addPosition(other.positions[j]);
+            }
+        }
+    }
+
+    /**
+     * Returns a list holding the entries of both lists, where all docIDs
+     * of <code>b</code> come after the ones of <code>a</code>.
+     */
+    static PostingsList concat(PostingsList a, PostingsList b) {
+        a.append(b);
+        return a;
+    }
+
+    /**
+     * Merges lists with disjoint docIDs into one list sorted by docID,
+     * repeatedly taking the entry with the smallest docID among the list heads.
+     */
+    public static PostingsList merge(List<PostingsList> lists) {
+        if (lists.size() == 1) {
+            return lists.getFirst();
+        }
+        var entries = 0;
+        var positionCount = 0;
+        for (var list : lists) {
+            entries += list.size;
+            positionCount += list.positionCount;
+        }
+        var result = new PostingsList(entries, positionCount);
+        var heads = new int[lists.size()];
+        for (int n = 0; n < entries; n++) {
+            var min = -1;
+            for (int k = 0; k < heads.length; k++) {
+                var list = lists.get(k);
+                if (heads[k] < list.size && (min < 0 || list.docIDs[heads[k]] < lists.get(min).docIDs[heads[min]])) {
+                    min = k;
+                }
+            }
+            var list = lists.get(min);
+            var i = heads[min]++;
+            result.add(list.docIDs[i]);
+            if (list.scores != null) {
+                result.setScore(result.size - 1, list.scores[i]);
+            }
+            for (int j = list.positionStart(i); j < list.positionEnds[i]; j++) {
+                result.addPosition(list.positions[j]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the docIDs contained in both lists, as postings without positions.
+     * <p>
+     * Lists of similar length are intersected with a linear two-pointer merge.
+     * If one list is more than {@link #GALLOP_RATIO} times longer than the other,
+     * every docID of the short list is instead located in the long one by
+     * galloping (exponential search from the previous match), which costs
+     * O(m log(n/m)) rather than O(m + n).
+     */
+    public PostingsList intersect(PostingsList other) {
+        var small = size <= other.size ? this : other;
+        var large = small == this ? other : this;
+        var result = new PostingsList(small.size, 1);
+        if ((long) small.size * GALLOP_RATIO < large.size) {
+            gallopIntersect(small, large, result);
+        } else {
+            mergeIntersect(small, large, result);
+        }
         return result;
     }
 
+    private static void mergeIntersect(PostingsList a, PostingsList b, PostingsList result) {
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            var x = a.docIDs[i];
+            var y = b.docIDs[j];
+            if (x == y) {
+                result.add(x);
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+    }
+
+    private static void gallopIntersect(PostingsList small, PostingsList large, PostingsList result) {
+        var lo = 0;
+        for (int i = 0; i < small.size && lo < large.size; i++) {
+            var x = small.docIDs[i];
+            // Find a range [lo, hi] whose last element is >= x, doubling the step each time
+            var step = 1;
+            var hi = lo;
+            while (hi < large.size && large.docIDs[hi] < x) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            var j = Arrays.binarySearch(large.docIDs, lo, Math.min(hi + 1, large.size), x);
+            if (j >= 0) {
+                result.add(x);
+                lo = j + 1;
+            } else {
+                lo = -j - 1;
+            }
+        }
+    }
+
     @Override
     public String toString() {
         var sb = new StringBuilder();
-        for (var entry : list) {
-            sb.append(entry).append(" ");
+        for (int i = 0; i < size; i++) {
+            sb.append(docIDs[i]).append(";").append(score(i)).append(";");
+            for (int j = positionStart(i); j < positionEnds[i]; j++) {
+                if (j > positionStart(i)) {
+                    sb.append(",");
+                }
+                sb.append(positions[j]);
+            }
+            sb.append(" ");
         }
         return sb.toString();
     }
 
     public static PostingsList fromString(String s) {
         var list = new PostingsList();
-        var data = s.split(" ");
-        for (var entry : data) {
-            list.list.add(PostingsEntry.fromString(entry));
+        for (var entry : s.split(" ")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            var parts = entry.split(";");
+            var score = Double.parseDouble(parts[1]);
+            if (score != 0) {
+                list.add(Integer.parseInt(parts[0]), score);
+            } else {
+                list.add(Integer.parseInt(parts[0]));
+            }
+            if (parts.length > 2) {
+                for (var offset : parts[2].split(",")) {
+                    list.addPosition(Integer.parseInt(offset));
+                }
+            }
         }
         return list;
     }
+
+
+    /**
+     * Iterates over the arrays of this list; advance gallops like the
+     * intersection does.
+     */
+    private class ArrayIterator implements PostingsIterator {
+        private int index = -1;
+        private int nextPosition;
+
+        @Override
+        public int docID() {
+            if (index < 0) {
+                return -1;
+            }
+            return index < size ? docIDs[index] : NO_MORE_DOCS;
+        }
+
+        @Override
+        public int nextDoc() {
+            return moveTo(index + 1);
+        }
+
+        @Override
+        public int advance(int target) {
+            var lo = Math.max(index, 0);
+            if (lo >= size || docIDs[lo] >= target) {
+                return moveTo(lo);
+            }
+            var step = 1;
+            var hi = lo;
+            while (hi < size && docIDs[hi] < target) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            var j = Arrays.binarySearch(docIDs, lo, Math.min(hi + 1, size), target);
+            return moveTo(j >= 0 ? j : -j - 1);
+        }
+
+        private int moveTo(int i) {
+            index = Math.min(i, size);
+            if (index < size) {
+                nextPosition = positionStart(index);
+            }
+            return docID();
+        }
+
+        @Override
+        public int tf() {
+            return PostingsList.this.tf(index);
+        }
+
+        @Override
+        public int nextPosition() {
+            return positions[nextPosition++];
+        }
+
+        @Override
+        public int docFrequency() {
+            return size;
+        }
+    }
+
+
+    /**
+     * A read-only view of the positions of one posting.
+     */
+    private class Positions extends AbstractList<Integer> implements RandomAccess {
+        private final int start;
+        private final int end;
+
+        Positions(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Integer get(int i) {
+            return positions[start + i];
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+    }
 }
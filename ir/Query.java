@@ -10,6 +10,8 @@ package ir;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
 import java.util.Iterator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.nio.charset.*;
 import java.io.*;
 
@@ -51,6 +53,17 @@ public class Query {
      *  (only used in assignment 3).
      */
     double beta = 1 - alpha;
+
+    /**
+     *  How far the words of a phrase query may be out of place for a document
+     *  to still match: every word is at a different position, and the positions,
+     *  each minus the place of its word in the phrase, are at most slop apart.
+     *  0 means an exact phrase.
+     */
+    public int slop = 0;
+
+    /** A phrase with an optional slop, like <code>"a b"~3</code>. */
+    private static final Pattern PHRASE_PATTERN = Pattern.compile( "\"([^\"]*)\"(?:~(\\d+))?" );
     
     
     /**
@@ -61,9 +74,17 @@ public class Query {
     
     
     /**
-     *  Creates a new Query from a string of words
+     *  Creates a new Query from a string of words. The words may be quoted
+     *  and followed by a slop, like <code>"a b"~3</code>.
      */
     public Query( String queryString  ) {
+        Matcher m = PHRASE_PATTERN.matcher( queryString.trim() );
+        if ( m.matches() ) {
+            queryString = m.group( 1 );
+            if ( m.group( 2 ) != null ) {
+                slop = Integer.parseInt( m.group( 2 ) );
+            }
+        }
         StringTokenizer tok = new StringTokenizer( queryString );
         while ( tok.hasMoreTokens() ) {
             queryterm.add( new QueryTerm(tok.nextToken(), 1.0) );
@@ -99,6 +120,7 @@ public class Query {
         for ( QueryTerm t : queryterm ) {
             queryCopy.queryterm.add( new QueryTerm(t.term, t.weight) );
         }
+        queryCopy.slop = slop;
         return queryCopy;
     }
     
@@ -0,0 +1,244 @@
+package ir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers queries without the GUI, either over HTTP or by replaying a file
+ * of queries.
+ * <p>
+ * The HTTP server listens on localhost and handles every request on its own
+ * virtual thread. A request like
+ * <pre>GET /search?q=zombie+attack&amp;type=ranked&amp;ranking=tf_idf&amp;norm=euclidean&amp;k=10</pre>
+ * is answered with a JSON object holding the number of results, the first k
+ * of them and the time the search took. Only <code>q</code> is required.
+ * <p>
+ * A replay file has one query per line, optionally preceded by its type and
+ * a tab, like <code>phrase&lt;TAB&gt;zombie attack</code>.
+ */
+public class QueryServer {
+
+    /** Number of results returned when the request does not say. */
+    public static final int DEFAULT_K = 10;
+
+    private final Searcher searcher;
+
+    public QueryServer(Searcher searcher) {
+        this.searcher = searcher;
+    }
+
+
+    /**
+     * Starts serving queries on the given port of localhost.
+     */
+    public HttpServer start(int port) throws IOException {
+        var server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/search", this::handleSearch);
+        server.start();
+        System.err.println("Serving queries on http://localhost:" + server.getAddress().getPort() + "/search");
+        return server;
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        int status;
+        String body;
+        try {
+            var params = parseParameters(exchange.getRequestURI().getRawQuery());
+            var q = params.get("q");
+            if (q == null) {
+                throw new IllegalArgumentException("missing parameter q");
+            }
+            var queryType = parseQueryType(params.getOrDefault("type", "intersection"));
+            var rankingType = RankingType.valueOf(params.getOrDefault("ranking", "tf_idf").toUpperCase());
+            var normType = NormalizationType.valueOf(params.getOrDefault("norm", "number_of_words").toUpperCase());
+            var k = Integer.parseInt(params.getOrDefault("k", String.valueOf(DEFAULT_K)));
+            if (k <= 0) {
+                throw new IllegalArgumentException("k must be positive");
+            }
+            var start = System.nanoTime();
+            var results = searcher.search(new Query(q.toLowerCase().trim()), queryType, rankingType, normType, k);
+            var latency = System.nanoTime() - start;
+            status = 200;
+            body = toJson(q, queryType, results, k, latency);
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = "{\"error\":" + quote(e.getMessage()) + "}";
+        } catch (RuntimeException e) {
+            // The client still gets an answer if the search fails, e.g. reading the index
+            e.printStackTrace();
+            status = 500;
+            body = "{\"error\":\"internal error\"}";
+        }
+        try {
+            var bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (var out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    /**
+     * Runs every query of a file, from the given number of concurrent
+     * clients, and prints the throughput and the latency percentiles of
+     * the queries that succeeded. A query that fails is counted and
+     * reported, and does not stop its client.
+     *
+     * @return The number of queries that failed.
+     * @throws IOException if the file cannot be read or names an unknown query type.
+     */
+    public int replay(File file, int clients, RankingType rankingType, NormalizationType normType, int k) throws IOException {
+        var queries = new ArrayList<Query>();
+        var queryTypes = new ArrayList<QueryType>();
+        var lineNumber = 0;
+        for (var line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            var tab = line.indexOf('\t');
+            try {
+                queryTypes.add(parseQueryType(tab < 0 ? "intersection" : line.substring(0, tab)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ":" + lineNumber + ": unknown query type " + line.substring(0, tab));
+            }
+            queries.add(new Query(line.substring(tab + 1).toLowerCase().trim()));
+        }
+        var latencies = new long[queries.size()];
+        var failed = new AtomicInteger();
+        var next = new AtomicInteger();
+        var start = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < Math.max(clients, 1); c++) {
+                executor.submit(() -> {
+                    for (var i = next.getAndIncrement(); i < queries.size(); i = next.getAndIncrement()) {
+                        var t = System.nanoTime();
+                        try {
+                            searcher.search(queries.get(i), queryTypes.get(i), rankingType, normType, k);
+                            latencies[i] = System.nanoTime() - t;
+                        } catch (RuntimeException e) {
+                            // Only the first failure is printed, later ones are likely the same
+                            if (failed.getAndIncrement() == 0) {
+                                e.printStackTrace();
+                            }
+                            latencies[i] = -1;
+                        }
+                    }
+                });
+            }
+        }
+        var elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        // The failed queries sort first, and are left out of the statistics
+        var succeeded = Arrays.copyOfRange(latencies, failed.get(), latencies.length);
+        var total = 0L;
+        for (var latency : succeeded) {
+            total += latency;
+        }
+        var n = Math.max(succeeded.length, 1);
+        System.out.printf("%d queries from %d clients in %.3f s, %.1f queries/s, %d failed%n",
+                queries.size(), clients, elapsed / 1e9, queries.size() / (elapsed / 1e9), failed.get());
+        System.out.printf("latency ms: mean %.3f, p50 %.3f, p95 %.3f, p99 %.3f, max %.3f%n",
+                total / 1e6 / n, percentile(succeeded, 50), percentile(succeeded, 95), percentile(succeeded, 99), percentile(succeeded, 100));
+        return failed.get();
+    }
+
+    /** The given percentile of sorted latencies, in milliseconds. */
+    private static double percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        var i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(i, 0)] / 1e6;
+    }
+
+
+    /**
+     * Parses a query type, either by its name or by the first word of it,
+     * like <code>ranked</code> for {@link QueryType#RANKED_QUERY}.
+     */
+    static QueryType parseQueryType(String name) {
+        var upper = name.trim().toUpperCase();
+        return QueryType.valueOf(upper.endsWith("_QUERY") ? upper : upper + "_QUERY");
+    }
+
+    private static Map<String, String> parseParameters(String rawQuery) {
+        var params = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (var pair : rawQuery.split("&")) {
+            var eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static String toJson(String q, QueryType queryType, PostingsList results, int k, long latency) {
+        var sb = new StringBuilder();
+        sb.append("{\"query\":").append(quote(q));
+        sb.append(",\"type\":").append(quote(queryType.name()));
+        sb.append(",\"latencyMs\":").append(String.format(Locale.ROOT, "%.3f", latency / 1e6));
+        sb.append(",\"total\":").append(results == null ? 0 : results.size());
+        sb.append(",\"results\":[");
+        var n = results == null ? 0 : Math.min(k, results.size());
+        for (int i = 0; i < n; i++) {
+            var docID = results.docID(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"docID\":").append(docID);
+            sb.append(",\"name\":").append(quote(Index.docNames.getOrDefault(docID, "")));
+            if (queryType == QueryType.RANKED_QUERY) {
+                sb.append(",\"score\":").append(results.score(i));
+            }
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    /** Returns the string as a JSON string literal. */
+    private static String quote(String s) {
+        var sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -167,13 +167,10 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback( results, relevant, engine );
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. Searches read the last published index,
+                // so they need not wait for indexing to finish.
                 long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType, normType );
-                }
+                results = engine.searcher.search( query, queryType, rankingType, normType );
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
                 //
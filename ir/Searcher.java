@@ -8,13 +8,19 @@
 package ir;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.IntStream;
+import java.util.Map;
 
 /**
  * Searches an index for results of a query.
+ * <p>
+ * Query terms may contain wildcards, like "mon*" or "re*ing", if there is
+ * a k-gram index. Such a term stands for all terms matching it (at most
+ * {@link #MAX_WILDCARD_TERMS} of them), as if their postings were one list.
  */
 public class Searcher {
 
@@ -30,57 +36,443 @@ public class Searcher {
         this.kgIndex = kgIndex;
     }
 
+    /** Number of results returned by ranked queries unless asked otherwise. */
+    public static final int DEFAULT_TOP_K = 100;
+
+    /** The largest number of terms a wildcard term stands for. */
+    public static final int MAX_WILDCARD_TERMS = 1000;
+
+    /** The number of wildcard patterns whose terms are cached. */
+    static final int WILDCARD_CACHE_SIZE = 256;
+
+    /** The terms of recent wildcard patterns, least recently used first. */
+    private final Map<String, Expansion> expansions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Expansion> eldest) {
+            return size() > WILDCARD_CACHE_SIZE;
+        }
+    };
+
+    /** The terms of a wildcard pattern, found among the given number of terms of the k-gram index. */
+    private record Expansion(int termCount, List<String> terms) {
+    }
+
     /**
      * Searches the index for postings matching the query.
      *
      * @return A postings list representing the result of the query.
      */
     public PostingsList search(Query query, QueryType queryType, RankingType rankingType, NormalizationType normType) {
+        return search(query, queryType, rankingType, normType, DEFAULT_TOP_K);
+    }
+
+    /**
+     * Searches the index for postings matching the query. Ranked queries
+     * return at most <code>k</code> postings, best first.
+     *
+     * @return A postings list representing the result of the query.
+     */
+    public PostingsList search(Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, int k) {
         return switch (queryType) {
             case INTERSECTION_QUERY -> searchIntersectionQuery(query);
             case PHRASE_QUERY -> searchPhraseQuery(query);
-            case RANKED_QUERY -> null;
+            case RANKED_QUERY -> searchRankedQuery(query, normType, k);
         };
     }
 
-    private PostingsList searchIntersectionQuery(Query query) {
-        PostingsList result = null;
+    /**
+     * Scores documents by the tf-idf weights of the query terms and keeps
+     * the k best.
+     * <p>
+     * PageRank scores are not available to the searcher, so all ranking
+     * types are scored by tf-idf.
+     */
+    private PostingsList searchRankedQuery(Query query, NormalizationType normType, int k) {
+        var n = Index.docNames.size();
+        var iterators = new ArrayList<PostingsIterator>();
+        var weights = new double[query.queryterm.size()];
+        var bounds = new double[weights.length];
+        var prunable = true;
         for (var queryTerm : query.queryterm) {
-            var postings = index.getPostings(queryTerm.term);
-            if (postings != null) {
-                if (result == null) {
-                    result = postings;
-                } else {
-                    result = result.intersect(postings);
+            var terms = expandWildcard(queryTerm.term);
+            var postings = terms == null ? index.iterator(queryTerm.term) : union(terms);
+            if (postings == null) {
+                continue;
+            }
+            // The document frequency of a wildcard term may exceed n, see UnionIterator
+            var idf = TfIdf.idf(n, Math.min(postings.docFrequency(), n));
+            var weight = queryTerm.weight * idf;
+            double bound;
+            if (terms == null) {
+                bound = index.upperBound(queryTerm.term, normType);
+                if (normType == NormalizationType.EUCLIDEAN) {
+                    // A term weight never exceeds the norm of its document vector
+                    bound = Math.min(bound, 1 / idf);
+                }
+            } else {
+                // The tf of a document is the sum of the tfs of the terms
+                bound = 0;
+                for (var term : terms) {
+                    bound += index.upperBound(term, normType);
                 }
             }
+            weights[iterators.size()] = weight;
+            // Widened a little, so that rounding errors cannot make it smaller than a score
+            bounds[iterators.size()] = weight == 0 ? 0 : weight * bound * (1 + 1e-9);
+            prunable &= weight >= 0;
+            iterators.add(postings);
+        }
+        if (iterators.isEmpty()) {
+            return null;
+        }
+        var top = new TopDocs(k);
+        if (prunable) {
+            scoreDocumentAtATime(iterators.toArray(new PostingsIterator[0]), weights, bounds, normType, top);
+        } else {
+            scoreTermAtATime(iterators, weights, normType, top);
+        }
+        return top.toPostingsList();
+    }
+
+    /**
+     * Scores documents term at a time into an array indexed by docID. This
+     * visits every posting, but works for negative weights as well.
+     */
+    private static void scoreTermAtATime(List<PostingsIterator> iterators, double[] weights, NormalizationType normType, TopDocs top) {
+        var scores = TfIdf.newDocumentArray();
+        // The documents containing some query term, which may still score 0
+        var scored = new BitSet();
+        for (int t = 0; t < iterators.size(); t++) {
+            var postings = iterators.get(t);
+            for (var docID = postings.nextDoc(); docID != PostingsIterator.NO_MORE_DOCS; docID = postings.nextDoc()) {
+                scored.set(docID);
+                scores[docID] += postings.tf() * weights[t];
+            }
+        }
+        for (var docID = scored.nextSetBit(0); docID >= 0; docID = scored.nextSetBit(docID + 1)) {
+            top.offer(docID, scores[docID] / length(docID, normType));
+        }
+    }
+
+    /**
+     * Scores documents one at a time with WAND pruning.
+     * <p>
+     * The iterators are kept sorted by their current docID. The pivot is the
+     * first iterator at which the summed upper bounds of the iterators up to
+     * it exceed the lowest score in the top k. No document before the pivot
+     * document can enter the top k, so the iterators before the pivot skip
+     * ahead to it, and a document is only scored once all of them are on it.
+     * Documents are visited in increasing docID order, so one with the same
+     * score as the lowest in the top k would lose the tie and need not be scored.
+     */
+    private static void scoreDocumentAtATime(PostingsIterator[] iterators, double[] weights, double[] bounds, NormalizationType normType, TopDocs top) {
+        var m = iterators.length;
+        var order = new int[m];
+        for (int t = 0; t < m; t++) {
+            iterators[t].nextDoc();
+            order[t] = t;
+        }
+        sortByDocID(iterators, order);
+        while (true) {
+            var threshold = top.threshold();
+            var sum = 0.0;
+            var p = -1;
+            for (int i = 0; i < m && iterators[order[i]].docID() != PostingsIterator.NO_MORE_DOCS; i++) {
+                sum += bounds[order[i]];
+                if (sum > threshold) {
+                    p = i;
+                    break;
+                }
+            }
+            if (p < 0) {
+                break;
+            }
+            var pivot = iterators[order[p]].docID();
+            if (iterators[order[0]].docID() == pivot) {
+                // Sum in query term order, so that scores do not depend on the order of the iterators
+                var score = 0.0;
+                for (int t = 0; t < m; t++) {
+                    if (iterators[t].docID() == pivot) {
+                        score += iterators[t].tf() * weights[t];
+                    }
+                }
+                top.offer(pivot, score / length(pivot, normType));
+                for (int i = 0; i < m && iterators[order[i]].docID() == pivot; i++) {
+                    iterators[order[i]].nextDoc();
+                }
+            } else {
+                for (int i = 0; i < p; i++) {
+                    iterators[order[i]].advance(pivot);
+                }
+            }
+            sortByDocID(iterators, order);
+        }
+    }
+
+    /** Sorts the indexes of the iterators by their current docID, which are mostly in order already. */
+    private static void sortByDocID(PostingsIterator[] iterators, int[] order) {
+        for (int i = 1; i < order.length; i++) {
+            var t = order[i];
+            var docID = iterators[t].docID();
+            var j = i - 1;
+            while (j >= 0 && iterators[order[j]].docID() > docID) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = t;
+        }
+    }
+
+    /** The length a document score is divided by. */
+    private static double length(int docID, NormalizationType normType) {
+        var length = switch (normType) {
+            case NUMBER_OF_WORDS -> Index.docLengths.getOrDefault(docID, 0).doubleValue();
+            case EUCLIDEAN -> Index.docNorms.getOrDefault(docID, 0.0);
+        };
+        return length > 0 ? length : 1;
+    }
+
+    /**
+     * Returns an iterator over the postings of a query term, which may be a
+     * wildcard term, or null if no document contains it.
+     */
+    private PostingsIterator iterator(String term) {
+        var terms = expandWildcard(term);
+        return terms == null ? index.iterator(term) : union(terms);
+    }
+
+    /**
+     * Returns an iterator over the union of the postings of the terms, or
+     * null if no document contains any of them.
+     */
+    private PostingsIterator union(List<String> terms) {
+        var iterators = new ArrayList<PostingsIterator>();
+        for (var term : terms) {
+            var iterator = index.iterator(term);
+            if (iterator != null) {
+                iterators.add(iterator);
+            }
+        }
+        if (iterators.isEmpty()) {
+            return null;
+        }
+        return iterators.size() == 1 ? iterators.getFirst() : new UnionIterator(iterators);
+    }
+
+    /**
+     * Returns the terms a wildcard term stands for, or null if the term has
+     * no wildcard or there is no k-gram index.
+     */
+    List<String> expandWildcard(String term) {
+        if (kgIndex == null || term.indexOf(KGramIndex.WILDCARD) < 0) {
+            return null;
+        }
+        var termCount = kgIndex.size();
+        synchronized (expansions) {
+            var expansion = expansions.get(term);
+            if (expansion != null && expansion.termCount() == termCount) {
+                return expansion.terms();
+            }
+        }
+        // Terms inserted since the expansion was cached could match as well
+        var terms = kgIndex.wildcardTerms(term, MAX_WILDCARD_TERMS);
+        synchronized (expansions) {
+            expansions.put(term, new Expansion(termCount, terms));
+        }
+        return terms;
+    }
+
+    private PostingsList searchIntersectionQuery(Query query) {
+        var iterators = new ArrayList<PostingsIterator>();
+        for (var queryTerm : query.queryterm) {
+            var iterator = iterator(queryTerm.term);
+            if (iterator != null) {
+                iterators.add(iterator);
+            }
+        }
+        if (iterators.isEmpty()) {
+            return null;
+        }
+        var result = new PostingsList();
+        var docID = nextCommonDoc(sortByDocFrequency(iterators), 0);
+        while (docID != PostingsIterator.NO_MORE_DOCS) {
+            result.add(docID);
+            docID = nextCommonDoc(iterators, docID + 1);
         }
         return result;
     }
 
+    /**
+     * Finds the documents containing the phrase, allowing the words to be
+     * out of place as long as they fit in a window, see {@link Query#slop}.
+     * <p>
+     * The postings of every term are fetched once. The documents containing
+     * all terms are found by advancing the iterators rarest term first, and
+     * the positions within each of them are merged by {@link #matchPhrase}.
+     */
     private PostingsList searchPhraseQuery(Query query) {
         if (query.queryterm.isEmpty()) {
             return null;
         }
+        // The iterators in query order, and sorted by document frequency for the intersection
+        var iterators = new ArrayList<PostingsIterator>();
+        for (var queryTerm : query.queryterm) {
+            var iterator = iterator(queryTerm.term);
+            if (iterator == null) {
+                return null;
+            }
+            iterators.add(iterator);
+        }
+        var sorted = sortByDocFrequency(new ArrayList<>(iterators));
+        var positions = new int[iterators.size()][];
+        var next = new int[iterators.size()];
+        var chosen = new int[iterators.size()];
         var result = new PostingsList();
-        var firstTerm = query.queryterm.getFirst();
-        var postings = index.getPostings(firstTerm.term);
-        for (int i = 0; i < postings.size(); i++) {
-            var entry = postings.get(i);
-            var followings = new ArrayList<List<Integer>>();
-            if (query.queryterm.stream().skip(1)
-                    .allMatch(q -> Optional.of(index.getPostings(q.term))
-                            .map(p -> p.searchDocID(entry.docID))
-                            .map(e -> e.offsets)
-                            .map(followings::add)
-                            .isPresent())) {
-                entry.offsets.stream()
-                        .filter(base -> IntStream.range(0, followings.size())
-                                .allMatch(j -> Collections.binarySearch(followings.get(j), base + j + 1) >= 0))
-                        .findFirst()
-                        .ifPresent(offset -> result.add(entry.docID, offset));
+        var docID = nextCommonDoc(sorted, 0);
+        while (docID != PostingsIterator.NO_MORE_DOCS) {
+            for (int j = 0; j < iterators.size(); j++) {
+                positions[j] = readPositions(iterators.get(j), positions[j]);
+            }
+            var match = matchPhrase(positions, next, chosen, query.slop);
+            if (match >= 0) {
+                result.add(docID, match);
             }
+            docID = nextCommonDoc(sorted, docID + 1);
         }
         return result;
     }
+
+    /**
+     * Looks for a distinct position of every term such that the positions,
+     * each minus the place of its term in the phrase, are at most
+     * <code>slop</code> apart. With a slop of 0 this is the exact phrase.
+     * <p>
+     * The position lists are merged with a sliding window: the window spans
+     * the current position of every term, and the term at the start of the
+     * window skips ahead to the first position that could still fit in a
+     * window with the others. Once the window is narrow enough, a position
+     * within it is picked for every term by {@link #assign}, which only
+     * has to look past the current positions when a term occurs more than
+     * once in the phrase. If there is none, the term at the start of the
+     * window moves to its next position.
+     *
+     * @param positions The positions of every term, as read by {@link #readPositions}.
+     * @param next      Scratch space for the index of the current position of every term.
+     * @param chosen    Scratch space for the positions picked for the terms.
+     * @return The first position in the first match, or -1 if there is none.
+     */
+    private static int matchPhrase(int[][] positions, int[] next, int[] chosen, int slop) {
+        Arrays.fill(next, 1);
+        while (true) {
+            var min = Integer.MAX_VALUE;
+            var max = Integer.MIN_VALUE;
+            var first = 0;
+            for (int j = 0; j < positions.length; j++) {
+                var position = positions[j][next[j]] - j;
+                if (position < min) {
+                    min = position;
+                    first = j;
+                }
+                max = Math.max(max, position);
+            }
+            var list = positions[first];
+            var i = next[first];
+            if (max - min <= slop) {
+                if (assign(positions, next, chosen, 0, min, slop)) {
+                    var start = Integer.MAX_VALUE;
+                    for (var position : chosen) {
+                        start = Math.min(start, position);
+                    }
+                    return start;
+                }
+                i++;
+            } else {
+                while (i <= list[0] && list[i] - first < max - slop) {
+                    i++;
+                }
+            }
+            if (i > list[0]) {
+                return -1;
+            }
+            next[first] = i;
+        }
+    }
+
+    /**
+     * Picks a position for every term from <code>j</code> on, from its current
+     * one on, such that the position minus the place of the term is in
+     * <code>[lo, lo + slop]</code> and no two terms get the same position.
+     *
+     * @return Whether there are such positions, which are then in <code>chosen</code>.
+     */
+    private static boolean assign(int[][] positions, int[] next, int[] chosen, int j, int lo, int slop) {
+        if (j == positions.length) {
+            return true;
+        }
+        var list = positions[j];
+        for (int i = next[j]; i <= list[0] && list[i] - j <= lo + slop; i++) {
+            if (list[i] - j < lo || isChosen(chosen, j, list[i])) {
+                continue;
+            }
+            chosen[j] = list[i];
+            if (assign(positions, next, chosen, j + 1, lo, slop)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether one of the first <code>count</code> terms got the position. */
+    private static boolean isChosen(int[] chosen, int count, int position) {
+        for (int j = 0; j < count; j++) {
+            if (chosen[j] == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<PostingsIterator> sortByDocFrequency(List<PostingsIterator> iterators) {
+        iterators.sort(Comparator.comparingInt(PostingsIterator::docFrequency));
+        return iterators;
+    }
+
+    /**
+     * Advances all iterators to the first document at or after <code>target</code>
+     * that all of them contain. The first iterator leads, the others are only
+     * advanced to the documents it proposes.
+     *
+     * @return The docID of that document, or {@link PostingsIterator#NO_MORE_DOCS}.
+     */
+    private static int nextCommonDoc(List<PostingsIterator> iterators, int target) {
+        var lead = iterators.getFirst();
+        var docID = lead.advance(target);
+        var i = 1;
+        while (docID != PostingsIterator.NO_MORE_DOCS && i < iterators.size()) {
+            var other = iterators.get(i).advance(docID);
+            if (other == docID) {
+                i++;
+            } else {
+                docID = lead.advance(other);
+                i = 1;
+            }
+        }
+        return docID;
+    }
+
+    /**
+     * Reads the positions of the current document of the iterator into
+     * <code>buf[1..tf]</code>, with the number of positions in <code>buf[0]</code>.
+     */
+    private static int[] readPositions(PostingsIterator iterator, int[] buf) {
+        var tf = iterator.tf();
+        if (buf == null || buf.length <= tf) {
+            buf = new int[Math.max(tf + 1, 16)];
+        }
+        buf[0] = tf;
+        for (int i = 1; i <= tf; i++) {
+            buf[i] = iterator.nextPosition();
+        }
+        return buf;
+    }
 }
@@ -0,0 +1,96 @@
+package ir;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A part of an index written to one file, with its terms in sorted order.
+ * <p>
+ * Every record is a term (as written by {@link DataOutputStream#writeUTF}),
+ * the length of its postings and the postings in the binary format of
+ * {@link PostingsCodec}. Since the terms are sorted, any number of segments
+ * can be merged in a single pass by reading them side by side.
+ */
+public final class Segment {
+
+    private Segment() {
+    }
+
+    /**
+     * Writes the postings lists of a main-memory index to a segment file.
+     *
+     * @return The number of terms written.
+     */
+    public static int write(String fileName, Map<String, PostingsList> index) throws IOException {
+        var terms = new ArrayList<>(index.keySet());
+        Collections.sort(terms);
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))) {
+            for (var term : terms) {
+                var data = PostingsCodec.encode(index.get(term), PostingsFormat.BINARY);
+                out.writeUTF(term);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        return terms.size();
+    }
+
+
+    /**
+     * Reads the records of a segment file one after the other.
+     */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final int number;
+        private String term;
+        private byte[] data;
+
+        /**
+         * Opens a segment file. Readers with lower numbers hold lower docIDs,
+         * which is used to order postings of the same term when merging.
+         */
+        public Reader(String fileName, int number) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+            this.number = number;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return false if the end of the segment has been reached.
+         */
+        public boolean next() throws IOException {
+            try {
+                term = in.readUTF();
+            } catch (EOFException e) {
+                term = null;
+                data = null;
+                return false;
+            }
+            data = new byte[in.readInt()];
+            in.readFully(data);
+            return true;
+        }
+
+        /** The term of the current record. */
+        public String term() {
+            return term;
+        }
+
+        /** The encoded postings of the current record. */
+        public byte[] data() {
+            return data;
+        }
+
+        public int number() {
+            return number;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -7,9 +7,23 @@
 
 package ir;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 
 
+/**
+ *  Suggests spelling corrections for query terms.
+ *
+ *  The candidates for a term are found with the k-gram index: the k-gram
+ *  postings of the term are read once, counting for every term ID how many
+ *  k-grams it shares with the term, which gives the Jaccard coefficient of
+ *  every term sharing a k-gram. The candidates passing the Jaccard threshold
+ *  whose length is close enough to the term are then compared with a
+ *  banded edit distance, which gives up as soon as the distance exceeds
+ *  MAX_EDIT_DISTANCE.
+ */
 public class SpellChecker {
     /** The regular inverted index to be used by the spell checker */
     Index index;
@@ -21,12 +35,19 @@ public class SpellChecker {
     class KGramStat implements Comparable {
         double score;
         String token;
+        /** The document frequency of the token, or 0 if it is unknown. */
+        int df;
 
         KGramStat(String token, double score) {
             this.token = token;
             this.score = score;
         }
 
+        KGramStat(String token, double score, int df) {
+            this(token, score);
+            this.df = df;
+        }
+
         public String getToken() {
             return token;
         }
@@ -54,6 +75,12 @@ public class SpellChecker {
       */
     private static final int MAX_EDIT_DISTANCE = 2;
 
+    /** For every term ID, the number of k-grams it shares with the term being checked. */
+    private int[] overlaps = new int[0];
+
+    /** The term IDs with a nonzero overlap. */
+    private int[] touched = new int[0];
+
 
     public SpellChecker(Index index, KGramIndex kgIndex) {
         this.index = index;
@@ -66,10 +93,7 @@ public class SpellChecker {
      *  of the two sets contains <code>intersection</code> elements.
      */
     private double jaccard(int szA, int szB, int intersection) {
-        //
-        // YOUR CODE HERE
-        //
-        return 0;
+        return (double) intersection / (szA + szB - intersection);
     }
 
     /**
@@ -78,36 +102,325 @@ public class SpellChecker {
      *      => insert (cost 1)
      *      => delete (cost 1)
      *      => substitute (cost 2)
+     *
+     * Only the cells at most <code>max</code> from the diagonal are computed,
+     * since every step away from it costs at least 1, and the computation
+     * stops at the first row whose cells all exceed <code>max</code>.
+     *
+     * @return The edit distance, or <code>max + 1</code> if it exceeds <code>max</code>.
      */
-    private int editDistance(String s1, String s2) {
-        //
-        // YOUR CODE HERE
-        //
-
-        return -1;
+    private int editDistance(String s1, String s2, int max) {
+        int n = s1.length();
+        int m = s2.length();
+        int tooFar = max + 1;
+        if (Math.abs(n - m) > max) {
+            return tooFar;
+        }
+        int[] previous = new int[m + 2];
+        int[] current = new int[m + 2];
+        for (int j = 0; j <= m + 1; j++) {
+            previous[j] = Math.min(j, tooFar);
+        }
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(m, i + max);
+            current[from - 1] = from == 1 ? Math.min(i, tooFar) : tooFar;
+            int rowMin = current[from - 1];
+            char c = s1.charAt(i - 1);
+            for (int j = from; j <= to; j++) {
+                int d = previous[j - 1] + (c == s2.charAt(j - 1) ? 0 : 2);
+                d = Math.min(d, Math.min(previous[j], current[j - 1]) + 1);
+                current[j] = Math.min(d, tooFar);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            // The cell right of the band is read by the next row
+            current[to + 1] = tooFar;
+            if (rowMin > max) {
+                return tooFar;
+            }
+            int[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+        return previous[m];
     }
 
     /**
      *  Checks spelling of all terms in <code>query</code> and returns up to
      *  <code>limit</code> ranked suggestions for spelling correction.
      */
-    public String[] check(Query query, int limit) {
-        //
-        // YOUR CODE HERE
-        //
+    public synchronized String[] check(Query query, int limit) {
+        if (query.queryterm.isEmpty()) {
+            return new String[0];
+        }
+        List<List<KGramStat>> qCorrections = new ArrayList<List<KGramStat>>();
+        for (Query.QueryTerm queryTerm : query.queryterm) {
+            List<KGramStat> corrections = queryTerm.term.indexOf(KGramIndex.WILDCARD) < 0
+                ? corrections(queryTerm.term, limit) : new ArrayList<KGramStat>();
+            if (corrections.isEmpty()) {
+                // The term is kept as it is, so the other terms can still be corrected
+                corrections.add(new KGramStat(queryTerm.term, 0));
+            }
+            qCorrections.add(corrections);
+        }
+        List<KGramStat> merged = mergeCorrections(qCorrections, limit);
+        String[] result = new String[merged.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = merged.get(i).getToken();
+        }
+        return result;
+    }
+
+    /**
+     *  Returns up to <code>limit</code> corrections of the term, best first.
+     *  A correction occurs in the index, has a Jaccard coefficient of at
+     *  least JACCARD_THRESHOLD with the term and an edit distance of at most
+     *  MAX_EDIT_DISTANCE; its score is log(1 + df) / (1 + edit distance).
+     */
+    private List<KGramStat> corrections(String term, int limit) {
+        KGramIndex.Postings p = kgIndex.postings();
+        if (overlaps.length < p.termCount) {
+            overlaps = new int[p.termCount];
+            touched = new int[p.termCount];
+        }
+        long[] grams = new long[term.length() + 2];
+        int size = kgIndex.kgrams(term, grams);
+        // A candidate shares at least minOverlap k-grams with the term, since
+        // the Jaccard coefficient is at most overlap / size
+        int minOverlap = (int) Math.ceil(JACCARD_THRESHOLD * size);
 
-        return null;
+        // The k-grams in the index, the ones with the fewest terms first
+        int[] lists = new int[size];
+        int listCount = 0;
+        for (int i = 0; i < size; i++) {
+            int g = p.find(grams[i]);
+            if (g >= 0) {
+                int j = listCount++;
+                for (; j > 0 && length(p, lists[j - 1]) > length(p, g); j--) {
+                    lists[j] = lists[j - 1];
+                }
+                lists[j] = g;
+            }
+        }
+        // A candidate contains at least one of any size - minOverlap + 1 of the
+        // k-grams. Taking the k-grams in no term and the shortest lists, only
+        // these lists add candidates, and the others only count for them
+        int adding = size - minOverlap + 1 - (size - listCount);
+        int touchedCount = 0;
+        for (int i = 0; i < listCount; i++) {
+            int end = p.offsets.get(lists[i] + 1);
+            for (int j = p.offsets.get(lists[i]); j < end; j++) {
+                int id = p.termIDs.get(j);
+                if (overlaps[id] > 0) {
+                    overlaps[id]++;
+                } else if (i < adding) {
+                    overlaps[id] = 1;
+                    touched[touchedCount++] = id;
+                }
+            }
+        }
+
+        List<KGramStat> result = new ArrayList<KGramStat>();
+        for (int i = 0; i < touchedCount; i++) {
+            int id = touched[i];
+            int overlap = overlaps[id];
+            overlaps[id] = 0;
+            if (overlap < minOverlap) {
+                continue;
+            }
+            String candidate = kgIndex.getTermByID(id);
+            // Every character more or less costs at least 1
+            if (Math.abs(candidate.length() - term.length()) > MAX_EDIT_DISTANCE) {
+                continue;
+            }
+            if (grams.length < candidate.length() + 2) {
+                grams = new long[candidate.length() + 2];
+            }
+            if (jaccard(size, kgIndex.kgrams(candidate, grams), overlap) < JACCARD_THRESHOLD) {
+                continue;
+            }
+            int distance = editDistance(term, candidate, MAX_EDIT_DISTANCE);
+            if (distance > MAX_EDIT_DISTANCE) {
+                continue;
+            }
+            // The k-gram index keeps the terms of documents that were removed
+            int df = index.docFrequency(candidate);
+            if (df == 0) {
+                continue;
+            }
+            result.add(new KGramStat(candidate, Math.log1p(df) / (1 + distance), df));
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result.size() > limit ? new ArrayList<KGramStat>(result.subList(0, limit)) : result;
+    }
+
+    /** The number of terms containing the k-gram with index g. */
+    private static int length(KGramIndex.Postings p, int g) {
+        return p.offsets.get(g + 1) - p.offsets.get(g);
     }
 
     /**
      *  Merging ranked candidate spelling corrections for all query terms available in
      *  <code>qCorrections</code> into one final merging of query phrases. Returns up
      *  to <code>limit</code> corrected phrases.
+     *
+     *  The score of a phrase is the sum of the scores of its terms, plus
+     *  log(1 + c) for every two adjacent terms occurring together in c
+     *  documents. The phrases are searched best first: a phrase is extended
+     *  term by term, and the prefix with the highest upper bound of the
+     *  score of its phrases is extended first. A complete phrase taken from
+     *  the queue is then better than every phrase not found yet, so the
+     *  search stops after <code>limit</code> of them.
+     *
+     *  The score of a prefix is exact: when a prefix is first extended, the
+     *  numbers of documents with its last term and each correction of the
+     *  next term are counted, and kept for the other prefixes ending with the
+     *  same correction. Pairs that are not counted yet are bounded by
+     *  assuming the terms occur together in as many documents as the rarer
+     *  one. Every count tightens the bounds of the terms before it, and a
+     *  prefix whose bound fell since it was added is put back in the queue
+     *  instead of being extended, so pairs of terms that are never reached
+     *  are not counted.
      */
     private List<KGramStat> mergeCorrections(List<List<KGramStat>> qCorrections, int limit) {
-        //
-        // YOUR CODE HERE
-        //
-        return null;
+        int n = qCorrections.size();
+        // pairScores[i][j][k]: the score of correction j of term i followed by correction k of term i + 1
+        double[][][] pairScores = new double[n][][];
+        // rest[i][j]: the upper bound of the score of the terms after i and the pairs from i on, if term i is its correction j
+        double[][] rest = new double[n][];
+        for (int i = 0; i < n; i++) {
+            pairScores[i] = new double[qCorrections.get(i).size()][];
+            rest[i] = new double[qCorrections.get(i).size()];
+        }
+        updateBounds(qCorrections, pairScores, rest, n - 2);
+
+        PriorityQueue<Prefix> queue = new PriorityQueue<Prefix>();
+        int sequence = 0;
+        List<KGramStat> first = qCorrections.get(0);
+        for (int j = 0; j < first.size(); j++) {
+            queue.add(new Prefix(null, first.get(j), j, first.get(j).score, rest[0][j], sequence++));
+        }
+        List<KGramStat> phrases = new ArrayList<KGramStat>();
+        while (!queue.isEmpty() && phrases.size() < limit) {
+            Prefix prefix = queue.poll();
+            int i = prefix.length - 1;
+            if (prefix.score + rest[i][prefix.correction] < prefix.bound) {
+                queue.add(new Prefix(prefix.parent, prefix.last, prefix.correction, prefix.score, rest[i][prefix.correction], sequence++));
+                continue;
+            }
+            if (prefix.length == n) {
+                phrases.add(new KGramStat(prefix.phrase(), prefix.score));
+                continue;
+            }
+            List<KGramStat> next = qCorrections.get(i + 1);
+            double[] pairs = pairScores[i][prefix.correction];
+            if (pairs == null) {
+                pairs = new double[next.size()];
+                for (int k = 0; k < next.size(); k++) {
+                    pairs[k] = Math.log1p(cooccurrences(prefix.last, next.get(k)));
+                }
+                pairScores[i][prefix.correction] = pairs;
+                updateBounds(qCorrections, pairScores, rest, i);
+            }
+            for (int k = 0; k < next.size(); k++) {
+                double score = prefix.score + pairs[k] + next.get(k).score;
+                queue.add(new Prefix(prefix, next.get(k), k, score, rest[i + 1][k], sequence++));
+            }
+        }
+        return phrases;
+    }
+
+    /**
+     *  Computes the bounds of the terms from <code>from</code> down to the
+     *  first one, from the pair scores counted so far and the bounds of the
+     *  pairs that are not.
+     */
+    private static void updateBounds(List<List<KGramStat>> qCorrections, double[][][] pairScores, double[][] rest, int from) {
+        int docCount = Index.docNames.size();
+        for (int i = from; i >= 0; i--) {
+            List<KGramStat> corrections = qCorrections.get(i);
+            List<KGramStat> next = qCorrections.get(i + 1);
+            for (int j = 0; j < corrections.size(); j++) {
+                double[] pairs = pairScores[i][j];
+                double bound = Double.NEGATIVE_INFINITY;
+                for (int k = 0; k < next.size(); k++) {
+                    double pair = pairs != null ? pairs[k] : pairBound(corrections.get(j), next.get(k), docCount);
+                    bound = Math.max(bound, pair + next.get(k).score + rest[i + 1][k]);
+                }
+                rest[i][j] = bound;
+            }
+        }
+    }
+
+    /** The upper bound of the score of two adjacent terms, from their document frequencies. */
+    private static double pairBound(KGramStat a, KGramStat b, int docCount) {
+        return Math.log1p(Math.min(Math.min(a.df, b.df), docCount));
+    }
+
+    /** The number of documents containing both terms. */
+    private int cooccurrences(KGramStat a, KGramStat b) {
+        if (a.df == 0 || b.df == 0) {
+            return 0;
+        }
+        if (a.df > b.df) {
+            // The rarer term leads, and the other one is skipped through
+            KGramStat tmp = a;
+            a = b;
+            b = tmp;
+        }
+        int count = 0;
+        PostingsIterator i = index.iterator(a.token);
+        PostingsIterator j = index.iterator(b.token);
+        if (i != null && j != null) {
+            int docID = i.nextDoc();
+            while (docID != PostingsIterator.NO_MORE_DOCS) {
+                int other = j.advance(docID);
+                if (other == docID) {
+                    count++;
+                    docID = i.nextDoc();
+                } else {
+                    docID = i.advance(other);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     *  The first terms of a phrase, with their score and the upper bound of
+     *  the score of all phrases starting with them.
+     */
+    private static final class Prefix implements Comparable<Prefix> {
+        final Prefix parent;
+        final KGramStat last;
+        /** The index of the last term among the corrections of its query term. */
+        final int correction;
+        final int length;
+        final double score;
+        final double bound;
+        /** Prefixes with the same bound are taken in the order they were added. */
+        final int sequence;
+
+        /**
+         *  @param rest The upper bound of the score of the terms after the last one, and of the pairs from the last one on.
+         */
+        Prefix(Prefix parent, KGramStat last, int correction, double score, double rest, int sequence) {
+            this.parent = parent;
+            this.last = last;
+            this.correction = correction;
+            this.length = parent == null ? 1 : parent.length + 1;
+            this.score = score;
+            this.bound = score + rest;
+            this.sequence = sequence;
+        }
+
+        String phrase() {
+            return parent == null ? last.token : parent.phrase() + " " + last.token;
+        }
+
+        public int compareTo(Prefix other) {
+            int cmp = Double.compare(other.bound, bound);
+            return cmp != 0 ? cmp : Integer.compare(sequence, other.sequence);
+        }
     }
 }
@@ -0,0 +1,94 @@
+package ir;
+
+import java.util.Map;
+
+/**
+ * The tf-idf weights used by ranked retrieval, and the document vector
+ * norms needed for Euclidean length normalization.
+ * <p>
+ * The weight of term t in document d is tf(t, d) * idf(t), with
+ * idf(t) = ln(N / df(t)). Indexes compute the Euclidean norm of every
+ * document vector once, when the index is finalized, by adding the squared
+ * weights of every term with {@link #addSquaredWeights} and storing the
+ * roots with {@link #storeNorms}.
+ */
+public final class TfIdf {
+
+    private TfIdf() {
+    }
+
+    /**
+     * The inverse document frequency of a term occurring in <code>df</code>
+     * of <code>n</code> documents.
+     */
+    public static double idf(int n, int df) {
+        return Math.log((double) n / df);
+    }
+
+    /**
+     * Returns an array that can hold a sum for every document of the index.
+     */
+    public static double[] newDocumentArray() {
+        var maxDocID = -1;
+        for (var docID : Index.docNames.keySet()) {
+            maxDocID = Math.max(maxDocID, docID);
+        }
+        return new double[maxDocID + 1];
+    }
+
+    /**
+     * Adds the squared tf-idf weights of one term to the sums of squares of
+     * the documents it occurs in.
+     */
+    public static void addSquaredWeights(PostingsIterator postings, int n, double[] sumsOfSquares) {
+        var idf = idf(n, postings.docFrequency());
+        for (var docID = postings.nextDoc(); docID != PostingsIterator.NO_MORE_DOCS; docID = postings.nextDoc()) {
+            var weight = postings.tf() * idf;
+            sumsOfSquares[docID] += weight * weight;
+        }
+    }
+
+    /**
+     * Replaces the sums of squares by their square roots, and stores these
+     * in the norms of the index.
+     *
+     * @return The array of norms, which is <code>sumsOfSquares</code>.
+     */
+    public static double[] storeNorms(double[] sumsOfSquares, Map<Integer, Double> docNorms) {
+        for (int docID = 0; docID < sumsOfSquares.length; docID++) {
+            sumsOfSquares[docID] = Math.sqrt(sumsOfSquares[docID]);
+            if (Index.docNames.containsKey(docID)) {
+                docNorms.put(docID, sumsOfSquares[docID]);
+            }
+        }
+        return sumsOfSquares;
+    }
+
+    /**
+     * Returns the lengths of all documents in an array indexed by docID.
+     */
+    public static double[] documentLengths() {
+        var lengths = newDocumentArray();
+        for (var e : Index.docLengths.entrySet()) {
+            if (e.getKey() < lengths.length) {
+                lengths[e.getKey()] = e.getValue();
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns the largest tf / length over the postings, where the lengths
+     * are indexed by docID and lengths of 0 count as 1, like the searcher
+     * does. The result is rounded up, so it stays an upper bound as a float.
+     */
+    public static float maxTfRatio(PostingsIterator postings, double[] lengths) {
+        var max = 0.0;
+        for (var docID = postings.nextDoc(); docID != PostingsIterator.NO_MORE_DOCS; docID = postings.nextDoc()) {
+            var length = docID < lengths.length && lengths[docID] > 0 ? lengths[docID] : 1;
+            max = Math.max(max, postings.tf() / length);
+        }
+        var bound = (float) max;
+        return bound < max ? Math.nextUp(bound) : bound;
+    }
+}
@@ -0,0 +1,18 @@
+package ir;
+
+/**
+ * Receives the tokens of a {@link Tokenizer} as slices of its buffer.
+ * <p>
+ * The characters are only valid during the call: the tokenizer reuses its
+ * buffer, so a sink that wants to keep a token must copy it, for instance by
+ * interning it in a {@link TokenTable}.
+ */
+@FunctionalInterface
+public interface TokenSink {
+
+    /**
+     * Called for every token, with its characters in
+     * <code>chars[start .. start+length-1]</code>.
+     */
+    void token(char[] chars, int start, int length);
+}
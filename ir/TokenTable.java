@@ -0,0 +1,106 @@
+package ir;
+
+import java.util.Arrays;
+
+/**
+ * Maps character slices to strings, so that tokens emitted to a
+ * {@link TokenSink} only become a String the first time they are seen.
+ * <p>
+ * The table uses open addressing with linear probing over the same hash as
+ * {@link String#hashCode}, and returns the same String instance for every
+ * occurrence of a token. It is not thread-safe; use one table per thread.
+ */
+public class TokenTable {
+
+    private String[] keys;
+    private int[] hashes;
+    private int size = 0;
+
+    public TokenTable() {
+        this(1024);
+    }
+
+    /** Creates a table with room for about the given number of strings. */
+    public TokenTable(int expectedSize) {
+        var capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        keys = new String[capacity];
+        hashes = new int[capacity];
+    }
+
+    /** Number of different strings in the table. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the string with the characters <code>chars[start .. start+length-1]</code>,
+     * creating it only if the table does not hold it yet.
+     */
+    public String intern(char[] chars, int start, int length) {
+        var hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        var mask = keys.length - 1;
+        var i = mix(hash) & mask;
+        for (var key = keys[i]; key != null; key = keys[i]) {
+            if (hashes[i] == hash && matches(key, chars, start, length)) {
+                return key;
+            }
+            i = (i + 1) & mask;
+        }
+        var s = new String(chars, start, length);
+        keys[i] = s;
+        hashes[i] = hash;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return s;
+    }
+
+    /** Returns the string equal to s that is in the table, adding s if there is none. */
+    public String intern(String s) {
+        return intern(s.toCharArray(), 0, s.length());
+    }
+
+    /** Removes all strings, keeping the capacity. */
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    private static boolean matches(String key, char[] chars, int start, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Spreads the high bits of the hash, since String hashes of short tokens differ mostly in the low ones. */
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        var oldKeys = keys;
+        var oldHashes = hashes;
+        keys = new String[oldKeys.length * 2];
+        hashes = new int[keys.length];
+        var mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                var i = mix(oldHashes[j]) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+    }
+}
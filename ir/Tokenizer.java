@@ -14,6 +14,8 @@ import java.io.FileReader;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.regex.PatternSyntaxException;
@@ -65,14 +67,40 @@ public class Tokenizer {
     /** Starting position of current token, or -1 if we're between tokens. */
     int token_start = -1;
 
-    /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    /** 
+     *  The next tokens to emit, in a ring buffer: the first one is at
+     *  @code{queue_head} and there are @code{queue_size} of them.
+     */
+    String[] token_queue = new String[16];
+    int queue_head = 0;
+    int queue_size = 0;
+
+    /** Puts the tokens found by @code{readTokens} on the queue. */
+    private final TokenSink enqueue = ( chars, start, length ) -> enqueue( new String( chars, start, length ));
 
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
 
-    /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    /** 
+     *  The patterns matching non-standard words (e-mail addresses, etc.),
+     *  each with a filter that rejects tokens it cannot match.
+     */
+    PatternFilter[] patterns = null;
+
+    /** One matcher per pattern, reset for every token. */
+    Matcher[] matchers = null;
+
+    /** 
+     *  Set to @code{false} to run every pattern on every token, also
+     *  when its filter rejects the token (to measure the filters).
+     */
+    boolean use_pattern_filters = true;
+
+    /** The current token, as the input of the matchers. */
+    private final Slice slice = new Slice();
+
+    /** The patterns of every pattern file read so far, so they are compiled once. */
+    private static final Map<String,PatternFilter[]> PATTERN_CACHE = new ConcurrentHashMap<String,PatternFilter[]>();
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
@@ -100,11 +128,29 @@ public class Tokenizer {
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
         if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+            patterns = PATTERN_CACHE.computeIfAbsent( pattern_file, Tokenizer::readPatterns );
+            matchers = new Matcher[patterns.length];
+            for ( int i=0; i<matchers.length; i++ ) {
+                matchers[i] = patterns[i].pattern().matcher( "" );
+            }
         }
     }
 
 
+    /**
+     *  Starts over on a new reader, keeping the buffer and the patterns,
+     *  so one tokenizer can be used for many documents.
+     */
+    public void reset( Reader reader ) {
+        this.reader = reader;
+        ptr = 0;
+        token_start = -1;
+        queue_head = 0;
+        queue_size = 0;
+        started_reading = false;
+    }
+
+
     /** 
      *  Returns true if the character is a punctuation character.
      */
@@ -124,8 +170,8 @@ public class Tokenizer {
     /**
      *  Read the patterns that match non-standard words  
      */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
+    private static PatternFilter[] readPatterns( String filename ) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
         String line = null;
         try {
             BufferedReader in = new BufferedReader( new FileReader( filename ));
@@ -142,6 +188,11 @@ public class Tokenizer {
         catch ( PatternSyntaxException e ) {
             System.err.println( "ERROR: Malformed regular expression: " + line );
         }
+        PatternFilter[] filters = new PatternFilter[patterns.size()];
+        for ( int i=0; i<filters.length; i++ ) {
+            filters[i] = PatternFilter.of( patterns.get( i ));
+        }
+        return filters;
     }
 
 
@@ -183,11 +234,11 @@ public class Tokenizer {
      */
     public boolean hasMoreTokens() throws IOException {
         if ( !started_reading ) {
-            readTokens();
+            readTokens( enqueue );
             started_reading = true;
         }
-        if ( token_queue.size() == 0 ) 
-            return readTokens();
+        if ( queue_size == 0 ) 
+            return readTokens( enqueue );
         else 
             return true;
     }
@@ -198,22 +249,64 @@ public class Tokenizer {
      *  are no more tokens.
      */
     public String nextToken() throws IOException { 
-        if ( token_queue.size() == 0 ) {
-            if ( readTokens() )
-                return token_queue.remove( 0 );
+        if ( queue_size == 0 ) {
+            if ( readTokens( enqueue ) )
+                return dequeue();
             else
                 return null;
         }
         else {
-            return token_queue.remove( 0 );
+            return dequeue();
         }
     }
 
 
     /**
-     *  Reads the next token. 
+     *  Passes all remaining tokens to the sink, as slices of the buffer.
+     *  Unlike @code{nextToken}, no String is created for the tokens.
+     */
+    public void tokenize( TokenSink sink ) throws IOException {
+        // Tokens queued by an earlier call to hasMoreTokens come first
+        while ( queue_size > 0 ) {
+            String t = dequeue();
+            sink.token( t.toCharArray(), 0, t.length() );
+        }
+        while ( readTokens( sink )) {
+        }
+    }
+
+
+    private void enqueue( String token ) {
+        if ( queue_size == token_queue.length ) {
+            String[] queue = new String[2*token_queue.length];
+            for ( int i=0; i<queue_size; i++ ) {
+                queue[i] = token_queue[(queue_head+i) % token_queue.length];
+            }
+            token_queue = queue;
+            queue_head = 0;
+        }
+        token_queue[(queue_head+queue_size) % token_queue.length] = token;
+        queue_size++;
+    }
+
+
+    private String dequeue() {
+        String token = token_queue[queue_head];
+        token_queue[queue_head] = null;
+        queue_head = (queue_head+1) % token_queue.length;
+        queue_size--;
+        return token;
+    }
+
+
+    /**
+     *  Reads until at least one token has been passed to the sink,
+     *  or until the end of input.
+     *
+     *  @return @code{false} if the end of input was reached without
+     *  finding a token.
      */ 
-    private boolean readTokens() throws IOException {
+    private boolean readTokens( TokenSink sink ) throws IOException {
         if ( !started_reading ) {
             refillBuffer( 0 );
             started_reading = true;
@@ -234,7 +327,7 @@ public class Tokenizer {
                 }
                 else {
                     // Check for non-standard words
-                    token_added_to_queue = addTokensToQueue();
+                    token_added_to_queue = emitTokens( sink );
                     token_start = -1;
                     ptr++;
                 }
@@ -265,69 +358,73 @@ public class Tokenizer {
 
 
     /**
-     *  Adds token to the queue
+     *  Passes the tokens in @code{buf[token_start .. ptr-1]} to the sink.
      */
-    private boolean addTokensToQueue() {
+    private boolean emitTokens( TokenSink sink ) {
         if ( token_start < 0 ) {
             return false;
         }
-        String s = new String( buf, token_start, ptr-token_start );
-        if ( patterns != null ) {
-            // Now let's see if the string s matches one of the patterns 
-            // for non-standard words
-            for ( Pattern p : patterns ) {
-                Matcher m = p.matcher( s );
+        if ( matchers != null ) {
+            // Now let's see if the token matches one of the patterns 
+            // for non-standard words. The characters of the token are
+            // collected first, so the filters can skip most patterns.
+            int length = ptr-token_start;
+            long low = PatternFilter.lowMask( buf, token_start, length );
+            long high = PatternFilter.highMask( buf, token_start, length );
+            slice.set( token_start, length );
+            for ( int i=0; i<matchers.length; i++ ) {
+                if ( use_pattern_filters && !patterns[i].mayMatch( low, high )) {
+                    continue;
+                }
+                Matcher m = matchers[i];
+                m.reset( slice );
                 if ( m.find() ) {
                     // The string contains a non-standard word. First check the prefix 
-                    // before the matching substring, then add the non-standard word  
-                    // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
-                    addTokensToQueue();
+                    // before the matching substring, then pass the non-standard word  
+                    // to the sink, then check the remainder of the string.
+                    int start = token_start;
+                    emitStandardTokens( sink, start, start+m.start() );
+                    sink.token( buf, start+m.start(), m.end()-m.start() );
+                    token_start = start+m.end();
+                    emitTokens( sink );
                     return true;
                 }
             }
         }
         // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        return emitStandardTokens( sink, token_start, ptr );
     }
 
 
     /**
-     *  Adds standard tokens (i.e. tokens not matching any regular
-     *  expression) to the queue.
+     *  Passes the standard tokens (i.e. tokens not matching any regular
+     *  expression) in @code{buf[from .. to-1]} to the sink.
      */
-    private boolean addStandardTokensToQueue( String s ) {
-        // This string s does not match any specific pattern.
+    private boolean emitStandardTokens( TokenSink sink, int from, int to ) {
+        // This string does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for ( int i=0; i<s.length(); i++ ) {
-            if ( punctuation( s.charAt( i ))) {
+        int start = from;
+        for ( int i=from; i<to; i++ ) {
+            if ( punctuation( buf[i] )) {
                 // The string before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if ( t.length()>0 ) {
-                    token_queue.add( t );
-                    smallbuf = new StringBuffer();
+                if ( i > start ) {
+                    sink.token( buf, start, i-start );
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    sink.token( buf, i, 1 );
                     tokens_found = true;
                 }
-            }
-            else {
-                smallbuf.append( s.charAt( i ));
+                start = i+1;
             }
         }
         // The string after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if ( t.length()>0 ) {
-            token_queue.add( t );
+        if ( to > start ) {
+            sink.token( buf, start, to-start );
             tokens_found = true;
         }   
         return tokens_found;
@@ -339,8 +436,42 @@ public class Tokenizer {
      */
     private void refillBuffer( int start ) throws IOException {
         int chars_read = reader.read( buf, start, BUFFER_LENGTH-start );
-        if ( chars_read >= 0 && chars_read < BUFFER_LENGTH-start ) {
-            buf[chars_read] = 0;
+        // The buffer may hold characters of an earlier document, so the
+        // end must be marked even if nothing was read.
+        int end = start + Math.max( chars_read, 0 );
+        if ( end < BUFFER_LENGTH ) {
+            buf[end] = 0;
+        }
+    }
+
+
+    /**
+     *  A part of the buffer, which the matchers read without it 
+     *  being copied into a String.
+     */
+    private class Slice implements CharSequence {
+        int start;
+        int length;
+
+        void set( int start, int length ) {
+            this.start = start;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt( int i ) {
+            return buf[start+i];
+        }
+
+        public CharSequence subSequence( int from, int to ) {
+            return new String( buf, start+from, to-from );
+        }
+
+        public String toString() {
+            return new String( buf, start, length );
         }
     }
 
@@ -0,0 +1,114 @@
+package ir;
+
+/**
+ * Keeps the k documents with the highest scores seen so far.
+ * <p>
+ * The documents are held in a binary min-heap of primitive arrays, so
+ * offering a document costs O(log k) and allocates nothing, and selecting
+ * the top k of n scored documents costs O(n log k) instead of sorting all n.
+ * Among equal scores, lower docIDs rank higher.
+ */
+public class TopDocs {
+
+    private final int[] docIDs;
+    private final double[] scores;
+    private int size = 0;
+
+    public TopDocs(int k) {
+        docIDs = new int[Math.max(k, 0)];
+        scores = new double[docIDs.length];
+    }
+
+    /** The number of documents kept. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The score a document must beat to be kept, negative infinity while
+     * fewer than k documents have been offered, or positive infinity if
+     * k is 0 and no document is kept at all.
+     */
+    public double threshold() {
+        if (docIDs.length == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return size < docIDs.length ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /** Offers a document, which is kept if it is among the k best so far. */
+    public void offer(int docID, double score) {
+        if (size < docIDs.length) {
+            docIDs[size] = docID;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (size > 0 && worse(docIDs[0], scores[0], docID, score)) {
+            docIDs[0] = docID;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Returns the documents as a postings list with scores, best first,
+     * and empties the heap.
+     */
+    public PostingsList toPostingsList() {
+        var n = size;
+        var ids = new int[n];
+        var best = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            ids[i] = docIDs[0];
+            best[i] = scores[0];
+            size--;
+            docIDs[0] = docIDs[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        var result = new PostingsList(n, 1);
+        for (int i = 0; i < n; i++) {
+            result.add(ids[i], best[i]);
+        }
+        return result;
+    }
+
+    /** Whether document a ranks below document b. */
+    private static boolean worse(int a, double scoreA, int b, double scoreB) {
+        return scoreA < scoreB || (scoreA == scoreB && a > b);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            var parent = (i - 1) / 2;
+            if (!worse(docIDs[i], scores[i], docIDs[parent], scores[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            var left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            var child = left + 1 < size && worse(docIDs[left + 1], scores[left + 1], docIDs[left], scores[left]) ? left + 1 : left;
+            if (!worse(docIDs[child], scores[child], docIDs[i], scores[i])) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        var docID = docIDs[i];
+        docIDs[i] = docIDs[j];
+        docIDs[j] = docID;
+        var score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
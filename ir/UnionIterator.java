@@ -0,0 +1,141 @@
+package ir;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Iterates over the union of the postings of several terms, as if they were
+ * the postings of one term.
+ * <p>
+ * The iterators are kept in a binary heap ordered by their current docID,
+ * so moving to the next document costs O(log m) per iterator that moves,
+ * and no postings list is decoded up front. The tf of a document is the sum
+ * of the tfs of the terms in it, and its positions are the positions of all
+ * of them, in increasing order. They are only merged when they are read.
+ */
+public final class UnionIterator implements PostingsIterator {
+
+    private final PostingsIterator[] heap;
+    private int size;
+    private final int docFrequency;
+    private int docID = -1;
+    private int tf;
+
+    /** The positions of the current document, once they are read. */
+    private int[] positions = new int[16];
+    private int positionCount = -1;
+    private int nextPosition;
+
+    /**
+     * Creates the union of iterators that have not been moved yet.
+     */
+    public UnionIterator(List<PostingsIterator> iterators) {
+        heap = iterators.toArray(new PostingsIterator[0]);
+        size = heap.length;
+        var df = 0L;
+        for (var iterator : heap) {
+            df += iterator.docFrequency();
+        }
+        docFrequency = (int) Math.min(df, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int docID() {
+        return docID;
+    }
+
+    @Override
+    public int nextDoc() {
+        return advance(docID + 1);
+    }
+
+    @Override
+    public int advance(int target) {
+        if (docID >= target) {
+            return docID;
+        }
+        while (size > 0 && heap[0].docID() < target) {
+            if (heap[0].advance(target) == NO_MORE_DOCS) {
+                heap[0] = heap[--size];
+            }
+            siftDown(0);
+        }
+        if (size == 0) {
+            docID = NO_MORE_DOCS;
+            tf = 0;
+            return docID;
+        }
+        docID = heap[0].docID();
+        tf = sumTf(0);
+        positionCount = -1;
+        return docID;
+    }
+
+    /** The sum of the tfs of the iterators on the current document in the subheap at i. */
+    private int sumTf(int i) {
+        if (i >= size || heap[i].docID() != docID) {
+            return 0;
+        }
+        return heap[i].tf() + sumTf(2 * i + 1) + sumTf(2 * i + 2);
+    }
+
+    private void siftDown(int i) {
+        if (size == 0) {
+            return;
+        }
+        var iterator = heap[i];
+        var docID = iterator.docID();
+        while (2 * i + 1 < size) {
+            var child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1].docID() < heap[child].docID()) {
+                child++;
+            }
+            if (heap[child].docID() >= docID) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = iterator;
+    }
+
+    @Override
+    public int tf() {
+        return tf;
+    }
+
+    @Override
+    public int nextPosition() {
+        if (positionCount < 0) {
+            if (positions.length < tf) {
+                positions = new int[Math.max(tf, 2 * positions.length)];
+            }
+            positionCount = 0;
+            readPositions(0);
+            Arrays.sort(positions, 0, positionCount);
+            nextPosition = 0;
+        }
+        return positions[nextPosition++];
+    }
+
+    /** Reads the positions of the iterators on the current document in the subheap at i. */
+    private void readPositions(int i) {
+        if (i >= size || heap[i].docID() != docID) {
+            return;
+        }
+        for (int j = heap[i].tf(); j > 0; j--) {
+            positions[positionCount++] = heap[i].nextPosition();
+        }
+        readPositions(2 * i + 1);
+        readPositions(2 * i + 2);
+    }
+
+    /**
+     * The sum of the document frequencies of the terms, which is an upper
+     * bound of the number of documents in the union.
+     */
+    @Override
+    public int docFrequency() {
+        return docFrequency;
+    }
+}
@@ -0,0 +1 @@
+java -cp classes -Xmx1g ir.Engine -d c:\davisWiki -p patterns.txt -ni -server 8080